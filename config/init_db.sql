@@ -97,7 +97,8 @@ CREATE INDEX idx_users_email ON users(email);
 CREATE INDEX idx_chats_type ON chats(chat_type);
 CREATE INDEX idx_chat_members_user ON chat_members(user_id);
 CREATE INDEX idx_chat_members_chat ON chat_members(chat_id);
-CREATE INDEX idx_messages_chat ON messages(chat_id);
+-- Постраничная загрузка истории: WHERE chat_id = ? AND message_id < ? ORDER BY message_id DESC
+CREATE INDEX idx_messages_chat_message ON messages(chat_id, message_id);
 CREATE INDEX idx_messages_sender ON messages(sender_id);
 CREATE INDEX idx_messages_timestamp ON messages(sent_at);
 CREATE INDEX idx_read_receipts_user ON read_receipts(user_id);
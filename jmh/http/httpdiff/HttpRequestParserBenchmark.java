@@ -0,0 +1,97 @@
+package http.httpdiff;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор запроса из ByteBuffer против прежнего пути через String
+ * (new String(bytes) + HttpRequest(String)); отдельно - запрос, пришедший
+ * несколькими чтениями, и пачка pipelined-запросов в одном буфере.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestParserBenchmark {
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    private static final int MAX_BODY_SIZE = 10 * 1024 * 1024;
+    private static final int PIPELINED = 16;
+    private static final int READ_SIZE = 512;
+
+    @Param({"get", "post"})
+    public String kind;
+
+    private byte[] request;
+    private byte[] pipelined;
+    private HttpRequestParser parser;
+
+    @Setup
+    public void setup() {
+        String headers = "Host: 192.168.100.5:8088\r\n"
+                + "User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko)\r\n"
+                + "Accept: application/json, text/plain, */*\r\n"
+                + "Accept-Language: ru-RU,ru;q=0.9,en-US;q=0.8\r\n"
+                + "Accept-Encoding: gzip, deflate\r\n"
+                + "Cookie: auth_token=eyJ1c2VySWQiOjQyLCJ1c2VybmFtZSI6ImFsaWNlIn0.c2lnbmF0dXJl\r\n"
+                + "Connection: keep-alive\r\n";
+        String message;
+        if ("post".equals(kind)) {
+            String body = "{\"chat_id\":17,\"message\":\"" + "Привет! ".repeat(64) + "\"}";
+            message = "POST /api/send-message HTTP/1.1\r\n" + headers
+                    + "Content-Type: application/json; charset=UTF-8\r\n"
+                    + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+        } else {
+            message = "GET /api/messages?chat_id=17&before=10234&limit=50 HTTP/1.1\r\n" + headers + "\r\n";
+        }
+        request = message.getBytes(StandardCharsets.UTF_8);
+        pipelined = message.repeat(PIPELINED).getBytes(StandardCharsets.UTF_8);
+        parser = new HttpRequestParser(MAX_HEADER_SIZE, MAX_BODY_SIZE);
+    }
+
+    @Benchmark
+    public HttpRequest parseBuffer() {
+        return parser.parse(ByteBuffer.wrap(request));
+    }
+
+    @Benchmark
+    public HttpRequest parseString() {
+        return new HttpRequest(new String(request, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Запрос приходит чтениями по READ_SIZE байт - как при медленном клиенте
+     */
+    @Benchmark
+    public HttpRequest parseSplitReads() {
+        HttpRequest result = null;
+        for (int offset = 0; offset < request.length; offset += READ_SIZE) {
+            result = parser.parse(ByteBuffer.wrap(request, offset, Math.min(READ_SIZE, request.length - offset)));
+        }
+        return result;
+    }
+
+    @Benchmark
+    public void parsePipelined(Blackhole blackhole) {
+        ByteBuffer buffer = ByteBuffer.wrap(pipelined);
+        HttpRequest result;
+        while ((result = parser.parse(buffer)) != null) {
+            blackhole.consume(result);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность разбора кадров клиента: пачка кадров в одном
+ * буфере, те же данные чтениями по READ_SIZE байт и сообщение из фрагментов.
+ * Отдельно - снятие маски по 8 байт против прежнего побайтного maskingKey[i % 4].
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebSocketFrameDecoderBenchmark {
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private static final int FRAMES = 32;
+    private static final int FRAGMENTS = 8;
+    private static final int READ_SIZE = 4096;
+    private static final int MASK = 0x37FA213D;
+
+    @Param({"64", "1024", "65536"})
+    public int payloadSize;
+
+    private byte[] frames;
+    private byte[] fragmented;
+    private byte[] payload;
+    private byte[] maskingKey;
+    private WebSocketFrameDecoder decoder;
+    private WebSocketFrameDecoder.Listener listener;
+    // Последнее разобранное сообщение - возвращается из бенчмарка, чтобы JIT не выбросил разбор
+    private Object last;
+
+    @Setup
+    public void setup() {
+        payload = "Сообщение чата ".repeat(payloadSize / 16 + 1)
+                .substring(0, payloadSize / 2).getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            writeFrame(out, true, WebSocketFrameDecoder.OPCODE_TEXT, payload, 0, payload.length);
+        }
+        frames = out.toByteArray();
+
+        out = new ByteArrayOutputStream();
+        int step = (payload.length + FRAGMENTS - 1) / FRAGMENTS;
+        for (int offset = 0; offset < payload.length; offset += step) {
+            int length = Math.min(step, payload.length - offset);
+            writeFrame(out, offset + length == payload.length,
+                    offset == 0 ? WebSocketFrameDecoder.OPCODE_TEXT : WebSocketFrameDecoder.OPCODE_CONTINUATION,
+                    payload, offset, length);
+        }
+        fragmented = out.toByteArray();
+
+        maskingKey = ByteBuffer.allocate(4).putInt(MASK).array();
+        decoder = new WebSocketFrameDecoder(MAX_MESSAGE_SIZE, null);
+        listener = new WebSocketFrameDecoder.Listener() {
+            @Override
+            public void onText(String message) {
+                last = message;
+            }
+
+            @Override
+            public void onBinary(byte[] message) {
+                last = message;
+            }
+
+            @Override
+            public void onPing(byte[] payload) {
+            }
+
+            @Override
+            public void onPong(byte[] payload) {
+            }
+
+            @Override
+            public void onClose(int statusCode) {
+            }
+        };
+    }
+
+    @Benchmark
+    public Object decodeCoalesced() throws WebSocketFrameDecoder.ProtocolException {
+        decoder.decode(ByteBuffer.wrap(frames), listener);
+        return last;
+    }
+
+    @Benchmark
+    public Object decodeSplitReads() throws WebSocketFrameDecoder.ProtocolException {
+        for (int offset = 0; offset < frames.length; offset += READ_SIZE) {
+            decoder.decode(ByteBuffer.wrap(frames, offset, Math.min(READ_SIZE, frames.length - offset)), listener);
+        }
+        return last;
+    }
+
+    @Benchmark
+    public Object decodeFragmented() throws WebSocketFrameDecoder.ProtocolException {
+        decoder.decode(ByteBuffer.wrap(fragmented), listener);
+        return last;
+    }
+
+    @Benchmark
+    public byte[] unmaskLongs() {
+        WebSocketFrameDecoder.unmask(payload, 0, payload.length, MASK);
+        return payload;
+    }
+
+    @Benchmark
+    public byte[] unmaskBytes() {
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] ^= maskingKey[i % 4];
+        }
+        return payload;
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, boolean fin, int opcode,
+                                   byte[] data, int offset, int length) {
+        out.write((fin ? 0x80 : 0) | opcode);
+        if (length < 126) {
+            out.write(0x80 | length);
+        } else if (length <= 0xFFFF) {
+            out.write(0x80 | 126);
+            out.write(length >>> 8);
+            out.write(length);
+        } else {
+            out.write(0x80 | 127);
+            out.writeBytes(ByteBuffer.allocate(8).putLong(length).array());
+        }
+        out.writeBytes(ByteBuffer.allocate(4).putInt(MASK).array());
+        byte[] masked = new byte[length];
+        System.arraycopy(data, offset, masked, 0, length);
+        WebSocketFrameDecoder.unmask(masked, 0, length, MASK);
+        out.write(masked, 0, length);
+    }
+}
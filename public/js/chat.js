@@ -6,7 +6,32 @@ let currentUsername = null;
 let websocket = null;
 let isWebSocketConnected = false;
 let reconnectAttempts = 0;
+let olderMessagesCursor = null;
+let loadingOlderMessages = false;
 const MAX_RECONNECT_ATTEMPTS = 5;
+let lastTypingSentAt = 0;
+let typingIndicatorTimer = null;
+const TYPING_THROTTLE_MS = 3000;
+const TYPING_INDICATOR_MS = 3000;
+// user_id -> { status, last_seen } по событиям presence от сервера
+const userPresence = new Map();
+
+// Двоичный подпротокол chat.binary.v1 (см. websocket/BinaryProtocol.java на сервере)
+const BINARY_PROTOCOL = 'chat.binary.v1';
+const BinaryEvent = {
+    AUTH: 0x01,
+    JOIN: 0x02,
+    SEND: 0x03,
+    TYPING: 0x04,
+    AUTH_OK: 0x81,
+    JOINED: 0x82,
+    NEW_MESSAGE: 0x83,
+    ACK: 0x84,
+    TYPING_EVENT: 0x85,
+    ERROR: 0xFF
+};
+const textEncoder = new TextEncoder();
+const textDecoder = new TextDecoder();
 let searchContainer = null;
 let searchInput = null;
 let searchResults = null;
@@ -15,6 +40,7 @@ const chatMessages = document.getElementById('chat-messages');
 const messageInput = document.getElementById('message-input');
 const sendButton = document.getElementById('send-button');
 const currentFriendName = document.getElementById('current-friend-name');
+const currentFriendStatus = document.getElementById('current-friend-status');
 const friendsList = document.getElementById('friends-list');
 
 document.addEventListener('DOMContentLoaded', async function() {
@@ -82,7 +108,8 @@ function connectWebSocket() {
         console.log('Using token:', token);
 
         const protocol = window.location.protocol === 'https:' ? 'wss:' : 'ws:';
-        const wsUrl = `${protocol}//192.168.100.5:8081/ws?token=${encodeURIComponent(token)}`;
+        // Тот же хост и порт, что и у страницы: HTTP-сервер сам переводит запрос на WebSocket
+        const wsUrl = `${protocol}//${window.location.host}/ws?token=${encodeURIComponent(token)}`;
 
         console.log('Connecting to WebSocket:', wsUrl);
 
@@ -90,22 +117,37 @@ function connectWebSocket() {
             websocket.close();
         }
 
-        websocket = new WebSocket(wsUrl);
+        // Сервер выберет двоичный подпротокол, если поддерживает его; иначе остаётся JSON
+        websocket = new WebSocket(wsUrl, [BINARY_PROTOCOL]);
+        websocket.binaryType = 'arraybuffer';
 
         websocket.onopen = function() {
             console.log('WebSocket connected successfully');
             isWebSocketConnected = true;
             reconnectAttempts = 0;
 
+            console.log('WebSocket protocol:', websocket.protocol || 'json');
+
             // Отправляем токен для аутентификации
-            const authMessage = JSON.stringify({
-                type: 'auth',
-                token: token
-            });
-            websocket.send(authMessage);
+            if (isBinaryProtocol()) {
+                websocket.send(encodeBinaryEvent(BinaryEvent.AUTH, null, token));
+            } else {
+                const authMessage = JSON.stringify({
+                    type: 'auth',
+                    token: token
+                });
+                websocket.send(authMessage);
+            }
         };
 
         websocket.onmessage = function(event) {
+            if (event.data instanceof ArrayBuffer) {
+                const data = decodeBinaryEvent(event.data);
+                if (data) {
+                    handleWebSocketEvent(data);
+                }
+                return;
+            }
             console.log('WebSocket message received:', event.data);
             handleWebSocketMessage(event.data);
         };
@@ -212,12 +254,86 @@ async function refreshToken() {
         return false;
     }
 }
+function isBinaryProtocol() {
+    return websocket && websocket.protocol === BINARY_PROTOCOL;
+}
+
+// Событие клиента: [тип u8][chat_id i32, если есть][строка UTF-8 до конца кадра]
+function encodeBinaryEvent(type, chatId, text) {
+    const body = text != null ? textEncoder.encode(text) : new Uint8Array(0);
+    const headerLength = chatId != null ? 5 : 1;
+    const buffer = new ArrayBuffer(headerLength + body.length);
+    const view = new DataView(buffer);
+    view.setUint8(0, type);
+    if (chatId != null) {
+        view.setInt32(1, chatId);
+    }
+    new Uint8Array(buffer, headerLength).set(body);
+    return buffer;
+}
+
+// Переводит двоичное событие сервера в тот же вид, что и JSON-сообщения
+function decodeBinaryEvent(buffer) {
+    const view = new DataView(buffer);
+    const bytes = new Uint8Array(buffer);
+    try {
+        switch (view.getUint8(0)) {
+            case BinaryEvent.AUTH_OK:
+                return {
+                    type: 'auth',
+                    status: 'success',
+                    user_id: view.getInt32(1),
+                    username: textDecoder.decode(bytes.subarray(5))
+                };
+            case BinaryEvent.JOINED:
+                return { type: 'chat_joined', chat_id: view.getInt32(1) };
+            case BinaryEvent.NEW_MESSAGE: {
+                const nameLength = view.getUint16(21);
+                return {
+                    type: 'new_message',
+                    message_id: view.getInt32(1),
+                    chat_id: view.getInt32(5),
+                    sender_id: view.getInt32(9),
+                    time: new Date(Number(view.getBigInt64(13))).toISOString(),
+                    sender_name: textDecoder.decode(bytes.subarray(23, 23 + nameLength)),
+                    text: textDecoder.decode(bytes.subarray(23 + nameLength))
+                };
+            }
+            case BinaryEvent.ACK:
+                return { type: 'message_sent', message_id: view.getInt32(1) };
+            case BinaryEvent.TYPING_EVENT:
+                return { type: 'typing', chat_id: view.getInt32(1), user_id: view.getInt32(5) };
+            case BinaryEvent.ERROR:
+                return {
+                    type: 'error',
+                    code: view.getUint16(1),
+                    message: textDecoder.decode(bytes.subarray(3))
+                };
+            default:
+                console.log('Unknown binary event:', view.getUint8(0));
+                return null;
+        }
+    } catch (e) {
+        console.error('Malformed binary event:', e);
+        return null;
+    }
+}
+
 function handleWebSocketMessage(message) {
     console.log('WebSocket message received:', message);
 
+    let data;
     try {
-        const data = JSON.parse(message);
+        data = JSON.parse(message);
+    } catch (e) {
+        console.log('Plain text message:', message);
+        return;
+    }
+    handleWebSocketEvent(data);
+}
 
+function handleWebSocketEvent(data) {
+    try {
         if (data.type === 'auth') {
             if (data.status === 'success') {
                 console.log('WebSocket authenticated successfully');
@@ -243,6 +359,16 @@ function handleWebSocketMessage(message) {
             return;
         }
 
+        if (data.type === 'typing') {
+            showTypingIndicator(data);
+            return;
+        }
+
+        if (data.type === 'presence') {
+            updatePresence(data.users || []);
+            return;
+        }
+
         if (data.type === 'error') {
             console.error('WebSocket error:', data.message);
             showNotification('Ошибка: ' + data.message);
@@ -258,12 +384,80 @@ function handleWebSocketMessage(message) {
         if (data.type === 'chats') {
             console.log('Chats list received:', data.chats);
             chatsData = data.chats || [];
+            rememberPeerPresence(chatsData);
             renderChatsList();
             return;
         }
 
     } catch (e) {
-        console.log('Plain text message:', message);
+        console.error('Error handling WebSocket event:', e);
+    }
+}
+
+function showTypingIndicator(data) {
+    if (!currentFriendStatus || data.chat_id != currentChatId || data.user_id == currentUserId) return;
+
+    currentFriendStatus.textContent = 'печатает...';
+    clearTimeout(typingIndicatorTimer);
+    typingIndicatorTimer = setTimeout(() => {
+        typingIndicatorTimer = null;
+        renderCurrentPresence();
+    }, TYPING_INDICATOR_MS);
+}
+
+// Сервер присылает изменения пачкой, не чаще раза в presence.flushIntervalMs
+function updatePresence(users) {
+    users.forEach(user => {
+        userPresence.set(user.user_id, { status: user.status, last_seen: user.last_seen });
+    });
+    renderChatsPresence();
+    // Индикатор набора текста важнее - присутствие покажется после него
+    if (!typingIndicatorTimer) renderCurrentPresence();
+}
+
+// Начальное состояние из списка чатов; события presence его уточняют
+function rememberPeerPresence(chats) {
+    chats.forEach(chat => {
+        if (chat.peer_id && !userPresence.has(chat.peer_id)) {
+            userPresence.set(chat.peer_id, { status: chat.peer_status, last_seen: null });
+        }
+    });
+}
+
+function presenceText(userId) {
+    const presence = userPresence.get(userId);
+    if (presence && presence.status === 'online') return 'в сети';
+    if (presence && presence.last_seen) return 'был(а) в сети в ' + formatTime(presence.last_seen);
+    return 'не в сети';
+}
+
+// Статус собеседника в шапке открытого чата; у группового чата его нет
+function renderCurrentPresence() {
+    if (!currentFriendStatus) return;
+    const chat = chatsData.find(c => c.chat_id == currentChatId);
+    currentFriendStatus.textContent = chat && chat.peer_id ? presenceText(chat.peer_id) : '';
+}
+
+function renderChatsPresence() {
+    if (!friendsList) return;
+    friendsList.querySelectorAll('.friend-item[data-peer-id]').forEach(item => {
+        const status = item.querySelector('.friend-status');
+        if (status) status.textContent = presenceText(parseInt(item.dataset.peerId));
+    });
+}
+
+// Не чаще раза в TYPING_THROTTLE_MS, пока пользователь набирает текст
+function sendTyping() {
+    if (!currentChatId || !isWebSocketConnected || !websocket || websocket.readyState !== WebSocket.OPEN) return;
+
+    const now = Date.now();
+    if (now - lastTypingSentAt < TYPING_THROTTLE_MS) return;
+    lastTypingSentAt = now;
+
+    if (isBinaryProtocol()) {
+        websocket.send(encodeBinaryEvent(BinaryEvent.TYPING, parseInt(currentChatId)));
+    } else {
+        websocket.send(JSON.stringify({ type: 'typing', chat_id: parseInt(currentChatId) }));
     }
 }
 
@@ -388,9 +582,12 @@ async function startChatWithUser(user) {
                     chat_id: chatData.chat_id,
                     chat_name: user.username,
                     chat_type: 'private',
+                    peer_id: user.id,
+                    peer_status: user.status,
                     last_message: '',
                     last_message_time: new Date().toISOString()
                 });
+                rememberPeerPresence(chatsData);
             }
 
             // Выбираем чат
@@ -437,6 +634,7 @@ function debounce(func, wait) {
 async function loadChatsHTTP() {
     try {
         chatsData = await loadChatsAPI();
+        rememberPeerPresence(chatsData);
         renderChatsList();
         if (chatsData.length > 0 && !currentChatId) {
             await selectChat(chatsData[0].chat_id);
@@ -466,12 +664,16 @@ async function joinChat(chatId) {
     console.log('Joining chat:', chatId);
 
     try {
-        const joinData = {
-            type: 'join_chat',
-            chat_id: parseInt(chatId)
-        };
+        if (isBinaryProtocol()) {
+            websocket.send(encodeBinaryEvent(BinaryEvent.JOIN, parseInt(chatId)));
+        } else {
+            const joinData = {
+                type: 'join_chat',
+                chat_id: parseInt(chatId)
+            };
 
-        websocket.send(JSON.stringify(joinData));
+            websocket.send(JSON.stringify(joinData));
+        }
         console.log('Join chat request sent');
 
     } catch (error) {
@@ -481,6 +683,10 @@ async function joinChat(chatId) {
 
 async function selectChat(chatId) {
     currentChatId = chatId;
+    lastTypingSentAt = 0;
+    clearTimeout(typingIndicatorTimer);
+    typingIndicatorTimer = null;
+    renderCurrentPresence();
     const chat = chatsData.find(c => c.chat_id == chatId);
     if (chat && currentFriendName) {
         currentFriendName.textContent = chat.chat_name;
@@ -565,21 +771,49 @@ async function loadUserData() {
 }
 async function loadMessagesHTTP(chatId) {
     try {
-        const messages = await loadMessagesAPI(chatId);
-        renderMessages(messages);
+        const data = await loadMessagesAPI(chatId);
+        olderMessagesCursor = data.next_before_message_id || null;
+        renderMessages(data.messages || []);
     } catch (error) {
         console.error('Error loading messages:', error);
+        olderMessagesCursor = null;
         renderMessages(getTestMessages());
     }
 }
 
-async function loadMessagesAPI(chatId) {
+// Подгружает предыдущую страницу истории, когда пользователь долистал до начала
+async function loadOlderMessages() {
+    if (!olderMessagesCursor || loadingOlderMessages || !currentChatId) return;
+    loadingOlderMessages = true;
+    const chatId = currentChatId;
+    try {
+        const data = await loadMessagesAPI(chatId, olderMessagesCursor);
+        if (chatId !== currentChatId) return;
+
+        const previousHeight = chatMessages.scrollHeight;
+        const messages = data.messages || [];
+        for (let i = messages.length - 1; i >= 0; i--) {
+            addMessageToChat(messages[i], true);
+        }
+        chatMessages.scrollTop += chatMessages.scrollHeight - previousHeight;
+        olderMessagesCursor = data.next_before_message_id || null;
+    } catch (error) {
+        console.error('Error loading older messages:', error);
+    } finally {
+        loadingOlderMessages = false;
+    }
+}
+
+async function loadMessagesAPI(chatId, beforeMessageId = null) {
     try {
-        const data = await apiRequest(`/api/messages?chat_id=${chatId}`);
-        return data.messages || [];
+        let url = `/api/messages?chat_id=${chatId}`;
+        if (beforeMessageId) {
+            url += `&before_message_id=${beforeMessageId}`;
+        }
+        return await apiRequest(url);
     } catch (error) {
         console.error('Error loading messages:', error);
-        return getTestMessages();
+        return { messages: getTestMessages() };
     }
 }
 
@@ -595,12 +829,16 @@ async function sendMessage() {
         await new Promise(resolve => setTimeout(resolve, 100));
 
         if (isWebSocketConnected && websocket && websocket.readyState === WebSocket.OPEN) {
-            const messageData = {
-                type: 'message',
-                chat_id: parseInt(currentChatId),
-                text: messageText
-            };
-            websocket.send(JSON.stringify(messageData));
+            if (isBinaryProtocol()) {
+                websocket.send(encodeBinaryEvent(BinaryEvent.SEND, parseInt(currentChatId), messageText));
+            } else {
+                const messageData = {
+                    type: 'message',
+                    chat_id: parseInt(currentChatId),
+                    text: messageText
+                };
+                websocket.send(JSON.stringify(messageData));
+            }
             console.log('Message sent via WebSocket');
         } else {
             await sendMessageAPI(currentChatId, messageText);
@@ -672,6 +910,14 @@ async function init() {
 }
 
 function setupEventListeners() {
+    if (chatMessages) {
+        chatMessages.addEventListener('scroll', () => {
+            if (chatMessages.scrollTop < 50) {
+                loadOlderMessages();
+            }
+        });
+    }
+
     if (sendButton) {
         sendButton.addEventListener('click', sendMessage);
     }
@@ -683,6 +929,7 @@ function setupEventListeners() {
                 sendMessage();
             }
         });
+        messageInput.addEventListener('input', sendTyping);
     }
 }
 
@@ -706,10 +953,12 @@ function renderChatsList() {
         const chatItem = document.createElement('div');
         chatItem.className = 'friend-item';
         chatItem.dataset.chatId = chat.chat_id;
+        if (chat.peer_id) chatItem.dataset.peerId = chat.peer_id;
         chatItem.innerHTML = `
             <div class="friend-avatar">${chat.chat_name.charAt(0)}</div>
             <div class="friend-info">
                 <div class="friend-name">${escapeHtml(chat.chat_name)}</div>
+                ${chat.peer_id ? `<div class="friend-status">${presenceText(chat.peer_id)}</div>` : ''}
                 <div class="last-message">${escapeHtml(chat.last_message)}</div>
             </div>
             <div class="message-time">${formatTime(chat.last_message_time)}</div>
@@ -732,7 +981,7 @@ function renderMessages(messages) {
     }, 100);
 }
 
-function addMessageToChat(message) {
+function addMessageToChat(message, prepend = false) {
     if (!chatMessages) return;
 
     const messageElement = document.createElement('div');
@@ -756,6 +1005,11 @@ function addMessageToChat(message) {
         </div>
     `;
 
+    if (prepend) {
+        chatMessages.insertBefore(messageElement, chatMessages.firstChild);
+        return;
+    }
+
     chatMessages.appendChild(messageElement);
 
     setTimeout(() => {
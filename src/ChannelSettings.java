@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Сетевые настройки сервера из server.conf с общим префиксом (server., websocket.):
+ * ioThreads - размер собственной AsynchronousChannelGroup (потоки только для
+ * ввода-вывода), backlog, tcpNoDelay, receiveBufferSize/sendBufferSize
+ * (0 - оставить значение ОС). ioThreads, backlog и receiveBufferSize
+ * относятся к слушателю и действуют, только если он открыт через
+ * openGroup/openServer; configure применим и к чужим подключениям.
+ */
+class ChannelSettings {
+    private final String name;
+    private final int ioThreads;
+    private final int backlog;
+    private final boolean tcpNoDelay;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+
+    ChannelSettings(String prefix, String name) {
+        this.name = name;
+        this.ioThreads = config.Config.getInt(prefix + ".ioThreads", Runtime.getRuntime().availableProcessors());
+        this.backlog = config.Config.getInt(prefix + ".backlog", 1024);
+        this.tcpNoDelay = config.Config.getBoolean(prefix + ".tcpNoDelay", true);
+        this.receiveBufferSize = config.Config.getInt(prefix + ".receiveBufferSize", 0);
+        this.sendBufferSize = config.Config.getInt(prefix + ".sendBufferSize", 0);
+    }
+
+    int getIoThreads() {
+        return ioThreads;
+    }
+
+    AsynchronousChannelGroup openGroup() throws IOException {
+        AtomicInteger counter = new AtomicInteger();
+        return AsynchronousChannelGroup.withFixedThreadPool(ioThreads, r -> {
+            Thread thread = new Thread(r, name + "-io-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * SO_RCVBUF задаётся до bind: принятые сокеты наследуют его, и масштаб
+     * TCP-окна согласуется уже при handshake
+     */
+    AsynchronousServerSocketChannel openServer(AsynchronousChannelGroup group, String host, int port) throws IOException {
+        AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open(group);
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (receiveBufferSize > 0) {
+            server.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        server.bind(new InetSocketAddress(host, port), backlog);
+        return server;
+    }
+
+    /**
+     * Настраивает принятое подключение; ошибка не мешает его обслуживать
+     */
+    void configure(AsynchronousSocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            if (sendBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to set socket options: " + e.getMessage());
+        }
+    }
+}
@@ -1,4 +1,10 @@
+import chat.MembershipCache;
+import chat.MessageStore;
+import chat.PresenceService;
+import chat.UserProfileCache;
 import com.sun.net.httpserver.Request;
+import db.Database;
+import db.Sql;
 import http.httpdiff.HttpRequest;
 import http.httpdiff.HttpResponse;
 import http.middleware.CharsetMiddleware;
@@ -8,10 +14,15 @@ import http.sitediff.Router;
 import http.sitediff.StaticFileHandler;
 import json.JsonBuilder;
 import json.JsonParser;
+import json.JsonStreamWriter;
 import json.JsonXmlExample;
 import security.SimpleTokenUtils;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.net.URLDecoder;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.charset.StandardCharsets;
@@ -20,12 +31,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
     private static boolean authEnabled;
-    static final String DB_URL = "jdbc:postgresql://localhost:5432/postgres";
-    static final String DB_USER = "postgres";
-    static final String DB_PASSWORD = "postgress";
+    private static final int MESSAGES_FETCH_SIZE = 500;
+    private static final int DEFAULT_MESSAGES_LIMIT = 50;
+    private static final int MAX_MESSAGES_LIMIT = 200;
+    private static final int SEND_MESSAGE_TIMEOUT_SECONDS = 10;
     private static WebSocketServer webSocketServer;
     public static void main(String[] args) {
         initializeConfiguration();
@@ -54,7 +67,7 @@ public class Main {
 
     private static void setupUserInfoRoute(Router router) {
         router.get("/api/user-info", (req, res) -> {
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            try (Connection conn = Database.getConnection()) {
                 String token = getAuthTokenFromRequest(req);
                 int userId = getUserIdFromToken(conn, token);
 
@@ -63,19 +76,17 @@ public class Main {
                     return JsonXmlExample.getErrorResponse("Unauthorized", 401);
                 }
 
-                String sql = "SELECT user_id, user_name FROM users WHERE user_id = ?";
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setInt(1, userId);
-                    ResultSet rs = stmt.executeQuery();
+                UserProfileCache.UserProfile profile = UserProfileCache.get(conn, userId);
+                if (profile != null) {
+                    Map<String, Object> userInfo = new HashMap<>();
+                    userInfo.put("id", profile.getUserId());
+                    userInfo.put("username", profile.getUsername());
+                    // Кэшированный users.status отстаёт от живых подключений
+                    userInfo.put("status", PresenceService.isOnline(userId) ? PresenceService.ONLINE : profile.getStatus());
+                    userInfo.put("avatar_url", profile.getAvatarUrl());
 
-                    if (rs.next()) {
-                        Map<String, Object> userInfo = new HashMap<>();
-                        userInfo.put("id", rs.getInt("user_id"));
-                        userInfo.put("username", rs.getString("user_name"));
-
-                        res.addHeader("Content-Type", "application/json");
-                        return JsonBuilder.build(Map.of("user", userInfo));
-                    }
+                    res.addHeader("Content-Type", "application/json");
+                    return JsonBuilder.build(Map.of("user", userInfo));
                 }
 
                 res.setStatusCode(404);
@@ -87,15 +98,18 @@ public class Main {
             }
         });
     }
+    /**
+     * WebSocket работает на порту HTTP-сервера (upgrade-запрос, клиент использует /ws);
+     * отдельный слушатель на websocket.port - только если включён websocket.standalone
+     */
     private static void startWebSocketServer() {
-        int webSocketPort = 8081;
-        WebSocketMessageProcessor processor = new WebSocketMessageProcessor(webSocketServer);
+        int webSocketPort = config.Config.getInt("websocket.port", 8081);
         webSocketServer = new WebSocketServer(webSocketPort);
+        PresenceService.start(webSocketServer::sendToUser);
 
-        new Thread(() -> {
+        if (config.Config.getBoolean("websocket.standalone", false)) {
             webSocketServer.start();
-            System.out.println("WebSocket server started on port " + webSocketPort);
-        }).start();
+        }
     }
 
     private static void initializeConfiguration() {
@@ -111,9 +125,11 @@ public class Main {
     private static void initializeDatabaseConnection() {
         try {
             Class.forName("org.postgresql.Driver");
-            try (Connection testConn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            Database.init();
+            try (Connection testConn = Database.getConnection()) {
                 System.out.println("Подключение к PostgreSQL успешно!");
             }
+            MessageStore.init();
         } catch (ClassNotFoundException e) {
             System.err.println("PostgreSQL JDBC Driver not found");
             e.printStackTrace();
@@ -151,6 +167,7 @@ public class Main {
         setupJsonApiRoute(router);
         setupProtectedRoute(router);
         setupGetMessagesRoute(router);
+        setupExportMessagesRoute(router);
         setupGetChatsRoute(router);
         setupSendMessageRoute(router);
         setupRefreshTokenRoute(router);
@@ -158,11 +175,33 @@ public class Main {
         setupValidateTokenRoute(router);
         setupSearchUsersRoute(router);
         setupCreateChatRoute(router);
+        setupMetricsRoute(router);
+    }
+
+    private static void setupMetricsRoute(Router router) {
+        router.get("/api/metrics", (req, res) -> {
+            if (SimpleTokenUtils.validateToken(getAuthTokenFromRequest(req)) == null) {
+                res.setStatusCode(401);
+                return JsonXmlExample.getErrorResponse("Unauthorized", 401);
+            }
+
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("db_pool", Database.getMetrics());
+            metrics.put("membership_cache", MembershipCache.getMetrics());
+            metrics.put("profile_cache", UserProfileCache.getMetrics());
+            metrics.put("message_store", MessageStore.getMetrics());
+            metrics.put("presence", PresenceService.getMetrics());
+            if (webSocketServer != null) {
+                metrics.put("websocket", webSocketServer.getMetrics());
+            }
+            res.addHeader("Content-Type", "application/json");
+            return JsonBuilder.build(metrics);
+        });
     }
 
     private static void setupSearchUsersRoute(Router router) {
         router.get("/api/search-users", (req, res) -> {
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            try (Connection conn = Database.getConnection()) {
                 String token = getAuthTokenFromRequest(req);
                 int currentUserId = getUserIdFromToken(conn, token);
 
@@ -203,9 +242,11 @@ public class Main {
 
                     while (rs.next()) {
                         Map<String, Object> user = new HashMap<>();
-                        user.put("id", rs.getInt("user_id"));
+                        int userId = rs.getInt("user_id");
+                        user.put("id", userId);
                         user.put("username", rs.getString("user_name"));
-                        user.put("status", rs.getString("status"));
+                        // users.status пишется пачками - живое подключение точнее
+                        user.put("status", PresenceService.isOnline(userId) ? PresenceService.ONLINE : rs.getString("status"));
                         user.put("email", rs.getString("email"));
                         users.add(user);
                     }
@@ -224,7 +265,7 @@ public class Main {
 
     private static void setupCreateChatRoute(Router router) {
         router.post("/api/create-chat", (req, res) -> {
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            try (Connection conn = Database.getConnection()) {
                 String token = getAuthTokenFromRequest(req);
                 int currentUserId = getUserIdFromToken(conn, token);
 
@@ -337,6 +378,9 @@ public class Main {
                     stmt.setInt(2, targetUserId);
                     stmt.executeUpdate();
                 }
+                MembershipCache.invalidateChat(newChatId);
+                MembershipCache.invalidateUser(currentUserId);
+                MembershipCache.invalidateUser(targetUserId);
 
                 // Создаем приветственное сообщение
                 String welcomeMessage = "Чат создан!";
@@ -403,7 +447,7 @@ public class Main {
 
     private static void setupGetMessagesRoute(Router router) {
         router.get("/api/messages", (req, res) -> {
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            try (Connection conn = Database.getConnection()) {
                 String token = getAuthTokenFromRequest(req);
                 int userId = getUserIdFromToken(conn, token);
 
@@ -420,45 +464,99 @@ public class Main {
                 }
 
                 // Проверяем, что пользователь является участником чата
-                String checkSql = "SELECT 1 FROM chat_members WHERE chat_id = ? AND user_id = ?";
-                try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
-                    checkStmt.setInt(1, Integer.parseInt(chatId));
-                    checkStmt.setInt(2, userId);
-                    if (!checkStmt.executeQuery().next()) {
-                        res.setStatusCode(403);
-                        return JsonXmlExample.getErrorResponse("Access denied", 403);
-                    }
+                if (!MembershipCache.isMember(conn, Integer.parseInt(chatId), userId)) {
+                    res.setStatusCode(403);
+                    return JsonXmlExample.getErrorResponse("Access denied", 403);
                 }
 
-                String sql = """
-                SELECT m.message_id, m.message_text, m.sent_at, 
-                       u.user_name as sender_name,
-                       (u.user_id = ?) as is_own_message
-                FROM messages m
-                JOIN users u ON m.sender_id = u.user_id
-                WHERE m.chat_id = ?
-                ORDER BY m.sent_at ASC
-                """;
+                int beforeMessageId;
+                int limit;
+                try {
+                    String before = queryParams.get("before_message_id");
+                    beforeMessageId = before != null ? Integer.parseInt(before) : Integer.MAX_VALUE;
+                    String limitParam = queryParams.get("limit");
+                    limit = limitParam != null ? Integer.parseInt(limitParam) : DEFAULT_MESSAGES_LIMIT;
+                } catch (NumberFormatException e) {
+                    res.setStatusCode(400);
+                    return JsonXmlExample.getErrorResponse("Invalid before_message_id or limit", 400);
+                }
+                int pageSize = Math.max(1, Math.min(limit, MAX_MESSAGES_LIMIT));
 
-                List<Map<String, Object>> messages = new ArrayList<>();
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                    stmt.setInt(1, userId);
-                    stmt.setInt(2, Integer.parseInt(chatId));
-                    ResultSet rs = stmt.executeQuery();
+                res.addHeader("Content-Type", "application/json");
+                return renderMessagesPage(conn, userId, Integer.parseInt(chatId), beforeMessageId, pageSize);
 
-                    while (rs.next()) {
-                        Map<String, Object> message = new HashMap<>();
-                        message.put("message_id", rs.getInt("message_id"));
-                        message.put("text", rs.getString("message_text"));
-                        message.put("time", rs.getTimestamp("sent_at"));
-                        message.put("sender", rs.getString("sender_name"));
-                        message.put("is_own", rs.getBoolean("is_own_message"));
-                        messages.add(message);
+            } catch (Exception e) {
+                res.setStatusCode(500);
+                return JsonXmlExample.getErrorResponse("Server error", 500);
+            }
+        });
+    }
+
+    /**
+     * Страница истории чата: limit сообщений с message_id < beforeMessageId по индексу
+     * (chat_id, message_id), в порядке возрастания. next_before_message_id - курсор
+     * для следующей (более старой) страницы, null если история закончилась.
+     * Страница не больше MAX_MESSAGES_LIMIT строк - читается обычным запросом из кэша
+     */
+    private static String renderMessagesPage(Connection conn, int userId, int chatId,
+                                             int beforeMessageId, int limit) throws SQLException, IOException {
+        StringWriter buffer = new StringWriter();
+        JsonStreamWriter json = new JsonStreamWriter(buffer);
+        json.beginObject().name("messages").beginArray();
+        int count = 0;
+        int oldestMessageId = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_MESSAGES_PAGE)) {
+            stmt.setInt(1, userId);
+            stmt.setInt(2, chatId);
+            stmt.setInt(3, beforeMessageId);
+            stmt.setInt(4, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int messageId = writeMessage(json, rs);
+                    if (count++ == 0) {
+                        oldestMessageId = messageId;
                     }
                 }
+            }
+        }
+        json.endArray();
+        // Неполная страница - значит, более старых сообщений нет
+        json.field("next_before_message_id", count == limit ? oldestMessageId : null);
+        json.endObject();
+        json.flush();
+        return buffer.toString();
+    }
+
+    /**
+     * Выгрузка всей истории чата одним ответом (chunked), без пагинации
+     */
+    private static void setupExportMessagesRoute(Router router) {
+        router.get("/api/messages/export", (req, res) -> {
+            try (Connection conn = Database.getConnection()) {
+                String token = getAuthTokenFromRequest(req);
+                int userId = getUserIdFromToken(conn, token);
+
+                if (userId == -1) {
+                    res.setStatusCode(401);
+                    return JsonXmlExample.getErrorResponse("Unauthorized", 401);
+                }
+
+                int chatId;
+                try {
+                    chatId = Integer.parseInt(getQueryParams(req).get("chat_id"));
+                } catch (NumberFormatException e) {
+                    res.setStatusCode(400);
+                    return JsonXmlExample.getErrorResponse("chat_id parameter required", 400);
+                }
+
+                if (!MembershipCache.isMember(conn, chatId, userId)) {
+                    res.setStatusCode(403);
+                    return JsonXmlExample.getErrorResponse("Access denied", 403);
+                }
 
                 res.addHeader("Content-Type", "application/json");
-                return JsonBuilder.build(Map.of("messages", messages));
+                res.setStreamingBody(out -> streamChatHistory(out, userId, chatId));
+                return null;
 
             } catch (Exception e) {
                 res.setStatusCode(500);
@@ -467,6 +565,52 @@ public class Main {
         });
     }
 
+    /**
+     * Пишет всю историю чата прямо из ResultSet в ответ. Строки читаются порциями
+     * по MESSAGES_FETCH_SIZE, поэтому память не зависит от длины истории
+     */
+    private static void streamChatHistory(OutputStream out, int userId, int chatId) throws IOException {
+        try (Connection conn = Database.getConnection()) {
+            // PostgreSQL отдаёт строки порциями только внутри транзакции
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_CHAT_HISTORY_EXPORT)) {
+                stmt.setFetchSize(MESSAGES_FETCH_SIZE);
+                stmt.setInt(1, userId);
+                stmt.setInt(2, chatId);
+
+                JsonStreamWriter json = new JsonStreamWriter(
+                        new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+                json.beginObject().name("messages").beginArray();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        writeMessage(json, rs);
+                    }
+                }
+                json.endArray().endObject();
+                json.flush();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            throw new IOException("Failed to stream messages: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Пишет сообщение из текущей строки; возвращает его message_id
+     */
+    private static int writeMessage(JsonStreamWriter json, ResultSet rs) throws SQLException, IOException {
+        int messageId = rs.getInt("message_id");
+        Timestamp sentAt = rs.getTimestamp("sent_at");
+        json.beginObject()
+                .field("message_id", messageId)
+                .field("text", rs.getString("message_text"))
+                .field("time", sentAt != null ? sentAt.toString() : null)
+                .field("sender", rs.getString("sender_name"))
+                .field("is_own", rs.getBoolean("is_own_message"))
+                .endObject();
+        return messageId;
+    }
+
     private static void setupEchoRoute(Router router) {
         router.post("/api/echo", (req, res) -> {
             try {
@@ -506,7 +650,7 @@ public class Main {
                     return JsonXmlExample.getErrorResponse("Пароль должен быть от 6 символов", 400);
                 }
 
-                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+                try (Connection conn = Database.getConnection()) {
                     if (isUserExists(conn, username)) {
                         res.setStatusCode(400);
                         return JsonXmlExample.getErrorResponse("Имя уже занято", 400);
@@ -544,7 +688,7 @@ public class Main {
 
     private static void setupGetChatsRoute(Router router) {
         router.get("/api/chats", (req, res) -> {
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            try (Connection conn = Database.getConnection()) {
                 String token = getAuthTokenFromRequest(req);
                 int userId = getUserIdFromToken(conn, token);
 
@@ -582,6 +726,19 @@ public class Main {
                         chats.add(chat);
                     }
                 }
+                // Собеседник личного чата - клиент показывает его присутствие и обновляет по событиям presence
+                for (Map<String, Object> chat : chats) {
+                    if (!"private".equals(chat.get("chat_type"))) {
+                        continue;
+                    }
+                    for (int memberId : MembershipCache.getMembers(conn, (Integer) chat.get("chat_id"))) {
+                        if (memberId != userId) {
+                            chat.put("peer_id", memberId);
+                            chat.put("peer_status", PresenceService.isOnline(memberId) ? PresenceService.ONLINE : PresenceService.OFFLINE);
+                            break;
+                        }
+                    }
+                }
 
                 res.addHeader("Content-Type", "application/json");
                 return JsonBuilder.build(Map.of("chats", chats));
@@ -670,9 +827,8 @@ public class Main {
 
                 System.out.println("[DEBUG] Login attempt: username='" + username + "'");
 
-                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                    String sql = "SELECT user_id, user_password FROM users WHERE user_name = ?";
-                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                try (Connection conn = Database.getConnection()) {
+                    try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_USER_CREDENTIALS)) {
                         stmt.setString(1, username);
                         ResultSet rs = stmt.executeQuery();
 
@@ -796,14 +952,15 @@ public class Main {
 
     private static void setupSendMessageRoute(Router router) {
         router.post("/api/send-message", (req, res) -> {
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                String token = getAuthTokenFromRequest(req);
-                int userId = getUserIdFromToken(conn, token);
-
-                if (userId == -1) {
+            // Соединение из пула здесь не держим: MessageStore берёт его сам,
+            // а в режиме write-behind запрос ждёт писателя, которому оно нужнее
+            try {
+                SimpleTokenUtils.TokenData tokenData = SimpleTokenUtils.validateToken(getAuthTokenFromRequest(req));
+                if (tokenData == null) {
                     res.setStatusCode(401);
                     return JsonXmlExample.getErrorResponse("Unauthorized", 401);
                 }
+                int userId = tokenData.getUserId();
 
                 Map<String, Object> requestData = JsonParser.parse(req.getBody());
                 Integer chatId = (Integer) requestData.get("chat_id");
@@ -814,37 +971,25 @@ public class Main {
                     return JsonXmlExample.getErrorResponse("Invalid parameters", 400);
                 }
 
-                String checkSql = "SELECT 1 FROM chat_members WHERE chat_id = ? AND user_id = ?";
-                try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
-                    checkStmt.setInt(1, chatId);
-                    checkStmt.setInt(2, userId);
-                    if (!checkStmt.executeQuery().next()) {
-                        res.setStatusCode(403);
-                        return JsonXmlExample.getErrorResponse("Access denied", 403);
-                    }
+                MessageStore.StoredMessage stored;
+                try {
+                    stored = MessageStore.send(chatId, userId, messageText);
+                } catch (MessageStore.StoreBusyException e) {
+                    res.setStatusCode(503);
+                    return JsonXmlExample.getErrorResponse("Server is busy", 503);
                 }
-
-                String insertSql = "INSERT INTO messages (chat_id, sender_id, message_text) VALUES (?, ?, ?)";
-                try (PreparedStatement insertStmt = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
-                    insertStmt.setInt(1, chatId);
-                    insertStmt.setInt(2, userId);
-                    insertStmt.setString(3, messageText);
-                    insertStmt.executeUpdate();
-
-                    ResultSet rs = insertStmt.getGeneratedKeys();
-                    if (rs.next()) {
-                        int messageId = rs.getInt(1);
-
-                        Map<String, Object> response = new HashMap<>();
-                        response.put("status", "success");
-                        response.put("message_id", messageId);
-                        res.addHeader("Content-Type", "application/json");
-                        return JsonBuilder.build(response);
-                    }
+                if (stored == null) {
+                    res.setStatusCode(403);
+                    return JsonXmlExample.getErrorResponse("Access denied", 403);
                 }
+                // Успех сообщаем только после записи в БД (в режиме write-behind - ждём commit пачки)
+                stored.persisted().get(SEND_MESSAGE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
 
-                res.setStatusCode(500);
-                return JsonXmlExample.getErrorResponse("Failed to send message", 500);
+                Map<String, Object> response = new HashMap<>();
+                response.put("status", "success");
+                response.put("message_id", stored.getMessageId());
+                res.addHeader("Content-Type", "application/json");
+                return JsonBuilder.build(response);
 
             } catch (Exception e) {
                 res.setStatusCode(500);
@@ -877,7 +1022,20 @@ public class Main {
     }
 
     private static void startServer(Router router) {
-        new Server(router).initserver();
+        Server server = new Server(router);
+        long shutdownTimeoutMs = config.Config.getInt("server.shutdownTimeoutMs", 10000);
+        // Сначала WebSocket (его подключения могут быть подняты и через HTTP-порт), затем HTTP
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (webSocketServer != null) {
+                webSocketServer.shutdown(shutdownTimeoutMs);
+            }
+            // После закрытия подключений - последние переходы в offline попадут в БД
+            PresenceService.stop();
+            // Сообщения, принятые при разборе очередей подключений, дописываются до остановки HTTP
+            MessageStore.shutdown();
+            server.shutdown(shutdownTimeoutMs);
+        }, "server-shutdown"));
+        server.initserver();
     }
 
     private static String getAuthDisabledResponse() {
@@ -1,33 +1,53 @@
+import chat.UserProfileCache;
+import db.Database;
+import db.Sql;
+import http.httpdiff.ChunkedOutputStream;
 import http.httpdiff.HttpHandler;
 import http.httpdiff.HttpHeader;
 import http.httpdiff.HttpRequest;
+import http.httpdiff.HttpRequestParser;
 import http.httpdiff.HttpResponse;
+import http.httpdiff.HttpResponseWriter;
 import http.sitediff.ContentType;
 import json.JsonXmlExample;
 import security.SimpleTokenUtils;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Future;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Map;
 import java.util.HashMap;
 import java.sql.*;
 
 public class Server {
     private final static int BUFFER_SIZE = 8192;
-    private final static int MAX_REQUEST_SIZE = 65536;
+    private final static int MAX_HEADER_SIZE = 65536;
+    private final static int DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+    private final static int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 4;
 
     private final HttpHandler handler;
     private final String host;
     private final int port;
-
-    private static final String DB_URL = "jdbc:postgresql://localhost:5432/postgres";
-    private static final String DB_USER = "postgres";
-    private static final String DB_PASSWORD = "postgress";
+    private final int workerThreads;
+    private final long keepAliveTimeoutMs;
+    private final int keepAliveMaxRequests;
+    private final int maxBodySize;
+    private final ExecutorService workers;
+    private final ChannelSettings channelSettings = new ChannelSettings("server", "http");
+    private AsynchronousChannelGroup group;
+    private final HttpResponseWriter responseWriter = new HttpResponseWriter(256);
+    private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+    private AsynchronousServerSocketChannel server;
 
     public Server(HttpHandler handler) {
         this(handler, config.Config.get("server.host"), config.Config.getInt("server.port"));
@@ -37,98 +57,275 @@ public class Server {
         this.handler = handler;
         this.host = host;
         this.port = port;
+        this.workerThreads = config.Config.getInt("server.workerThreads", DEFAULT_WORKER_THREADS);
+        this.keepAliveTimeoutMs = config.Config.getInt("server.keepAliveTimeoutMs", 15000);
+        this.keepAliveMaxRequests = config.Config.getInt("server.keepAliveMaxRequests", 100);
+        this.maxBodySize = config.Config.getInt("server.maxBodySize", DEFAULT_MAX_BODY_SIZE);
+        this.workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "http-worker-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     public void initserver() {
-        try (AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open()) {
-            server.bind(new InetSocketAddress(host, port));
-            System.out.printf("Server started on %s:%d%n", host, port);
-
-            while (true) {
-                try {
-                    Future<AsynchronousSocketChannel> future = server.accept();
-                    handleClient(future);
-                } catch (Exception e) {
-                    System.err.println("Error accepting client connection: " + e.getMessage());
-                }
-            }
+        try {
+            group = channelSettings.openGroup();
+            server = channelSettings.openServer(group, host, port);
+            System.out.printf("Server started on %s:%d (%d I/O threads, %d worker threads)%n",
+                    host, port, channelSettings.getIoThreads(), workerThreads);
+
+            acceptNext();
+            shutdownLatch.await();
         } catch (IOException e) {
             System.err.println("Server failed to start: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdown();
         }
     }
 
-    private void handleClient(Future<AsynchronousSocketChannel> future) {
-        AsynchronousSocketChannel asyncChannel = null;
-        String requestData = null;
-        boolean isWebSocket = false;
+    private void acceptNext() {
+        server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel channel, Void attachment) {
+                acceptNext();
+                System.out.println("New client connection");
+                channelSettings.configure(channel);
+                new ClientConnection(channel).read();
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                if (!server.isOpen()) {
+                    shutdownLatch.countDown();
+                    return;
+                }
+                System.err.println("Error accepting client connection: " + exc.getMessage());
+                acceptNext();
+            }
+        });
+    }
 
+    /**
+     * Плавная остановка: новые подключения не принимаются, начатые запросы
+     * дорабатывают в пуле workers, keep-alive после текущего ответа не продлевается.
+     * Подключения, не закрывшиеся за timeoutMs, закрываются принудительно
+     */
+    public void shutdown(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        System.out.println("Stopping HTTP server...");
         try {
-            asyncChannel = future.get();
-            System.out.println("New client connection");
+            if (server != null) {
+                server.close();
+            }
+            workers.shutdown();
+            if (!workers.awaitTermination(remainingMs(deadline), TimeUnit.MILLISECONDS)) {
+                System.err.println("HTTP requests still running after " + timeoutMs + " ms");
+            }
+            if (group != null) {
+                group.shutdown();
+                if (!group.awaitTermination(remainingMs(deadline), TimeUnit.MILLISECONDS)) {
+                    group.shutdownNow();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error stopping HTTP server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("HTTP server stopped");
+    }
+
+    private static long remainingMs(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Состояние одного HTTP-соединения. Чтение и запись идут через CompletionHandler,
+     * поэтому медленный клиент не занимает поток; обработка запроса (JDBC и т.п.)
+     * выполняется в пуле workers.
+     * Соединение переиспользуется (keep-alive): запросы, пришедшие одним пакетом
+     * (pipelining), обрабатываются строго по очереди, ответ на следующий
+     * отправляется только после записи предыдущего.
+     */
+    private class ClientConnection implements CompletionHandler<Integer, Void> {
+        private final AsynchronousSocketChannel channel;
+        private final ByteBuffer inbound = ByteBuffer.allocate(BUFFER_SIZE);
+        private final HttpRequestParser parser = new HttpRequestParser(MAX_HEADER_SIZE, maxBodySize);
+        private int requestCount = 0;
+
+        ClientConnection(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+            inbound.flip();
+        }
+
+        void read() {
+            inbound.clear();
+            channel.read(inbound, keepAliveTimeoutMs, TimeUnit.MILLISECONDS, null, this);
+        }
+
+        @Override
+        public void completed(Integer bytesRead, Void attachment) {
+            if (bytesRead == -1) {
+                close();
+                return;
+            }
+            inbound.flip();
+            processNext();
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if (!(exc instanceof InterruptedByTimeoutException)) {
+                System.err.println("Error reading from client: " + exc.getMessage());
+            }
+            close();
+        }
+
+        /**
+         * Разбирает уже прочитанные байты; готовый запрос отдаёт в пул,
+         * иначе продолжает чтение. Непрочитанный хвост (следующий запрос при
+         * pipelining) остаётся в inbound до записи текущего ответа.
+         */
+        void processNext() {
+            HttpRequest request;
+            try {
+                request = parser.parse(inbound);
+            } catch (HttpRequestParser.HttpParseException e) {
+                sendErrorResponse(this, e.getStatusCode(), e.getMessage());
+                return;
+            }
 
-            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-            StringBuilder builder = new StringBuilder();
-            int totalBytesRead = 0;
+            if (request == null) {
+                read();
+                return;
+            }
 
-            while (true) {
-                int bytesRead = asyncChannel.read(buffer).get();
-                if (bytesRead == -1) break;
+            workers.execute(() -> dispatch(request));
+        }
 
-                totalBytesRead += bytesRead;
-                if (totalBytesRead > MAX_REQUEST_SIZE) {
-                    sendErrorResponse(asyncChannel, 413, "Request too large");
+        private void dispatch(HttpRequest request) {
+            try {
+                if (isWebSocketRequest(request)) {
+                    System.out.println("WebSocket connection detected");
+                    // Байты после запроса (первые кадры клиента) переходят к WebSocket вместе с каналом
+                    ByteBuffer leftover = ByteBuffer.allocate(inbound.remaining()).put(inbound).flip();
+                    Main.getWebSocketServer().upgrade(channel, request, leftover);
                     return;
                 }
 
-                buffer.flip();
-                builder.append(StandardCharsets.UTF_8.decode(buffer));
-                buffer.clear();
+                HttpResponse response = new HttpResponse();
 
-                if (builder.toString().contains("\r\n\r\n")) {
-                    break;
+                if (handler != null) {
+                    handleRequest(request, response);
                 }
-            }
 
-            requestData = builder.toString();
-            if (requestData.isEmpty()) {
-                sendErrorResponse(asyncChannel, 400, "Empty request");
-                return;
+                requestCount++;
+                boolean keepAlive = request.isKeepAlive()
+                        && requestCount < keepAliveMaxRequests
+                        && server.isOpen();
+                if (keepAlive) {
+                    response.addHeader(HttpHeader.CONNECTION, "keep-alive");
+                    response.addHeader("Keep-Alive", "timeout=" + keepAliveTimeoutMs / 1000
+                            + ", max=" + (keepAliveMaxRequests - requestCount));
+                } else {
+                    response.addHeader(HttpHeader.CONNECTION, "close");
+                }
+
+                if (response.isStreaming()) {
+                    writeStreaming(request, response, keepAlive);
+                } else {
+                    sendResponse(this, response, keepAlive);
+                }
+            } catch (Exception e) {
+                System.err.println("Error handling client: " + e.getMessage());
+                close();
             }
+        }
 
-            if (isWebSocketRequest(requestData)) {
-                isWebSocket = true;
-                System.out.println("WebSocket connection detected");
+        /**
+         * Отправка потокового тела выполняется прямо в рабочем потоке: заголовки и
+         * чанки пишутся блокирующе, память ограничена буфером ChunkedOutputStream
+         */
+        private void writeStreaming(HttpRequest request, HttpResponse response, boolean keepAlive) {
+            // HTTP/1.0 не знает chunked - тело ограничивается закрытием соединения
+            boolean chunked = !"HTTP/1.0".equals(request.getVersion());
+            if (!chunked) {
+                keepAlive = false;
+                response.getHeaders().remove(HttpHeader.TRANSFER_ENCODING);
+                response.addHeader(HttpHeader.CONNECTION, "close");
+            }
 
-                Main.getWebSocketServer().handleWebSocketConnection(asyncChannel, requestData);
+            ByteBuffer head = responseWriter.encodeHead(response);
+            try (ChunkedOutputStream out = new ChunkedOutputStream(channel, head, chunked,
+                    BUFFER_SIZE, keepAliveTimeoutMs)) {
+                response.getStreamingBody().writeTo(out);
+            } catch (Exception e) {
+                // Буфер заголовков мог остаться в незавершённой записи - в пул его не возвращаем
+                System.err.println("Error streaming response: " + e.getMessage());
+                close();
                 return;
             }
+            responseWriter.release(head);
 
-            HttpRequest request = new HttpRequest(requestData);
-            HttpResponse response = new HttpResponse();
-
-            if (handler != null) {
-                handleRequest(request, response);
+            if (keepAlive) {
+                processNext();
+            } else {
+                close();
             }
+        }
 
-            sendResponse(asyncChannel, response);
+        void write(HttpResponse response, boolean keepAlive) {
+            ByteBuffer[] buffers = responseWriter.encode(response);
+            channel.write(buffers, 0, buffers.length, keepAliveTimeoutMs, TimeUnit.MILLISECONDS, buffers,
+                    new CompletionHandler<Long, ByteBuffer[]>() {
+                        @Override
+                        public void completed(Long result, ByteBuffer[] buffers) {
+                            int offset = HttpResponseWriter.firstRemaining(buffers, 0);
+                            if (offset < buffers.length) {
+                                channel.write(buffers, offset, buffers.length - offset, keepAliveTimeoutMs,
+                                        TimeUnit.MILLISECONDS, buffers, this);
+                                return;
+                            }
+                            responseWriter.release(buffers);
+                            if (keepAlive) {
+                                processNext();
+                            } else {
+                                close();
+                            }
+                        }
+
+                        @Override
+                        public void failed(Throwable exc, ByteBuffer[] buffers) {
+                            responseWriter.release(buffers);
+                            System.err.println("Error sending response: " + exc.getMessage());
+                            close();
+                        }
+                    });
+        }
 
-        } catch (Exception e) {
-            System.err.println("Error handling client: " + e.getMessage());
-        } finally {
-            if (asyncChannel != null && !isWebSocket) {
-                try {
-                    asyncChannel.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing client channel: " + e.getMessage());
-                }
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client channel: " + e.getMessage());
             }
         }
     }
 
-    private boolean isWebSocketRequest(String requestData) {
-        return requestData.contains("Upgrade: websocket") &&
-                requestData.contains("Connection: Upgrade") &&
-                requestData.contains("Sec-WebSocket-Key");
+    private boolean isWebSocketRequest(HttpRequest request) {
+        String upgrade = request.getHeader("Upgrade");
+        String connection = request.getHeader(HttpHeader.CONNECTION);
+        return upgrade != null && upgrade.equalsIgnoreCase("websocket") &&
+                connection != null && connection.toLowerCase().contains("upgrade") &&
+                request.hasHeader("Sec-WebSocket-Key");
     }
 
     private void handleRequest(HttpRequest request, HttpResponse response) {
@@ -153,10 +350,6 @@ public class Server {
                 }
                 response.setBody(body);
             }
-
-            response.addHeader("Connection", "close");
-            byte[] bodyBytes = response.getBody().getBytes(StandardCharsets.UTF_8);
-            response.addHeader("Content-Length", String.valueOf(bodyBytes.length));
         } catch (Exception e) {
             e.printStackTrace();
             response.setStatusCode(500);
@@ -244,9 +437,8 @@ public class Server {
     }
 
     private boolean validateRefreshToken(String refreshToken) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT user_id, expires_at FROM user_sessions WHERE token = ? AND expires_at > NOW() AND is_active = TRUE";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (Connection conn = Database.getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_ACTIVE_SESSION)) {
                 stmt.setString(1, refreshToken);
                 ResultSet rs = stmt.executeQuery();
                 return rs.next();
@@ -258,9 +450,8 @@ public class Server {
     }
 
     private int getUserIdFromRefreshToken(String refreshToken) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT user_id FROM user_sessions WHERE token = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (Connection conn = Database.getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_SESSION_USER)) {
                 stmt.setString(1, refreshToken);
                 ResultSet rs = stmt.executeQuery();
                 if (rs.next()) {
@@ -274,37 +465,26 @@ public class Server {
     }
 
     private String getUsernameById(int userId) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT user_name FROM users WHERE user_id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setInt(1, userId);
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    return rs.getString("user_name");
-                }
-            }
+        try {
+            return UserProfileCache.getUsername(userId);
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return "Unknown";
     }
 
-    private void sendResponse(AsynchronousSocketChannel channel, HttpResponse response) {
-        try {
-            ByteBuffer resp = ByteBuffer.wrap(response.getBytes());
-            channel.write(resp).get();
-        } catch (Exception e) {
-            System.err.println("Error sending response: " + e.getMessage());
-        }
+    private void sendResponse(ClientConnection connection, HttpResponse response, boolean keepAlive) {
+        connection.write(response, keepAlive);
     }
 
-    private void sendErrorResponse(AsynchronousSocketChannel channel, int code, String message) {
+    private void sendErrorResponse(ClientConnection connection, int code, String message) {
         HttpResponse response = new HttpResponse();
         response.setStatusCode(code);
         response.setStatus(message);
         response.addHeader(HttpHeader.CONTENT_TYPE, ContentType.TEXT_PLAIN_UTF8);
+        response.addHeader(HttpHeader.CONNECTION, "close");
         response.setBody(message);
-        sendResponse(channel, response);
+        sendResponse(connection, response, false);
     }
 
 }
\ No newline at end of file
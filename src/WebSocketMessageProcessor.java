@@ -1,21 +1,27 @@
+import chat.MembershipCache;
+import chat.MessageStore;
+import chat.UserProfileCache;
+import db.Database;
+import db.Sql;
 import json.JsonBuilder;
 import json.JsonParser;
 import security.SimpleTokenUtils;
+import websocket.BinaryProtocol;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.sql.*;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class WebSocketMessageProcessor implements WebSocketServer.MessageProcessor {
     private final WebSocketServer webSocketServer;
-    private final Map<AsynchronousSocketChannel, String> clientChats = new ConcurrentHashMap<>();
 
-    // Данные БД
-    private static final String DB_URL = "jdbc:postgresql://localhost:5432/postgres";
-    private static final String DB_USER = "postgres";
-    private static final String DB_PASSWORD = "postgress";
+    private static final int DEFAULT_MESSAGES_LIMIT = 50;
+    private static final int MAX_MESSAGES_LIMIT = 200;
 
     public WebSocketMessageProcessor(WebSocketServer webSocketServer) {
         this.webSocketServer = webSocketServer;
@@ -24,9 +30,6 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
     @Override
     public String processMessage(AsynchronousSocketChannel client, String message, WebSocketServer.WebSocketClient wsClient) {
         try {
-            System.out.println("Processing WebSocket message: " + message);
-            System.out.println("Processing WebSocket message: " + message);
-
             // Пробуем обработать как JSON
             if (message.trim().startsWith("{")) {
                 return handleJsonMessage(client, message, wsClient);
@@ -62,6 +65,96 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
         }
     }
 
+    @Override
+    public byte[] processBinary(AsynchronousSocketChannel client, byte[] message, WebSocketServer.WebSocketClient wsClient) {
+        ByteBuffer event = ByteBuffer.wrap(message);
+        try {
+            byte type = event.get();
+            if (type == BinaryProtocol.AUTH) {
+                return handleBinaryAuth(client, BinaryProtocol.remainingString(event), wsClient);
+            }
+            if (!wsClient.isAuthenticated()) {
+                return BinaryProtocol.error(BinaryProtocol.ERROR_NOT_AUTHENTICATED, "Not authenticated");
+            }
+            switch (type) {
+                case BinaryProtocol.JOIN:
+                    return handleBinaryJoin(client, event.getInt(), wsClient);
+                case BinaryProtocol.SEND:
+                    int chatId = event.getInt();
+                    return handleBinarySend(client, chatId, BinaryProtocol.remainingString(event), wsClient);
+                case BinaryProtocol.TYPING:
+                    handleTyping(client, event.getInt(), wsClient);
+                    return null;
+                default:
+                    return BinaryProtocol.error(BinaryProtocol.ERROR_BAD_REQUEST, "Unknown event type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            return BinaryProtocol.error(BinaryProtocol.ERROR_BAD_REQUEST, "Malformed event");
+        }
+    }
+
+    private byte[] handleBinaryAuth(AsynchronousSocketChannel client, String token, WebSocketServer.WebSocketClient wsClient) {
+        SimpleTokenUtils.TokenData tokenData = SimpleTokenUtils.validateToken(token);
+        if (tokenData == null) {
+            return BinaryProtocol.error(BinaryProtocol.ERROR_NOT_AUTHENTICATED, "Invalid token");
+        }
+        webSocketServer.authenticate(client, wsClient, tokenData.getUserId(), tokenData.getUsername());
+        return BinaryProtocol.authOk(tokenData.getUserId(), tokenData.getUsername());
+    }
+
+    private byte[] handleBinaryJoin(AsynchronousSocketChannel client, int chatId, WebSocketServer.WebSocketClient wsClient) {
+        try {
+            if (!MembershipCache.isMember(chatId, Integer.parseInt(wsClient.getUserId()))) {
+                return BinaryProtocol.error(BinaryProtocol.ERROR_ACCESS_DENIED, "Access denied to chat");
+            }
+            webSocketServer.joinChat(client, wsClient, String.valueOf(chatId));
+            return BinaryProtocol.joined(chatId);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return BinaryProtocol.error(BinaryProtocol.ERROR_SAVE_FAILED, "Database error");
+        }
+    }
+
+    private byte[] handleBinarySend(AsynchronousSocketChannel client, int chatId, String text,
+                                    WebSocketServer.WebSocketClient wsClient) {
+        if (text.trim().isEmpty()) {
+            return BinaryProtocol.error(BinaryProtocol.ERROR_BAD_REQUEST, "Message text is empty");
+        }
+        int userId = Integer.parseInt(wsClient.getUserId());
+
+        try {
+            MessageStore.StoredMessage stored = MessageStore.send(chatId, userId, text);
+            if (stored == null) {
+                return BinaryProtocol.error(BinaryProtocol.ERROR_ACCESS_DENIED, "Access denied to chat");
+            }
+            broadcastNewMessage(stored, getSenderName(wsClient, userId));
+
+            return acknowledge(stored, BinaryProtocol.ack(stored.getMessageId()),
+                    BinaryProtocol.error(BinaryProtocol.ERROR_SAVE_FAILED, "Failed to save message " + stored.getMessageId()),
+                    reply -> webSocketServer.sendBinaryMessage(client, reply));
+        } catch (MessageStore.StoreBusyException e) {
+            return BinaryProtocol.error(BinaryProtocol.ERROR_BUSY, "Server is busy, message not sent");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return BinaryProtocol.error(BinaryProtocol.ERROR_SAVE_FAILED, "Database error");
+        }
+    }
+
+    /**
+     * "Печатает..." - рассылается остальным подписчикам текущего чата без обращения к БД
+     */
+    private void handleTyping(AsynchronousSocketChannel client, int chatId, WebSocketServer.WebSocketClient wsClient) {
+        String chat = String.valueOf(chatId);
+        if (!wsClient.isAuthenticated() || !chat.equals(wsClient.getCurrentChatId())) {
+            return;
+        }
+        int userId = Integer.parseInt(wsClient.getUserId());
+        webSocketServer.broadcastEvent(chat,
+                () -> "{\"type\":\"typing\",\"chat_id\":" + chatId + ",\"user_id\":" + userId + "}",
+                () -> BinaryProtocol.typing(chatId, userId),
+                client);
+    }
+
     // ДОБАВЬТЕ этот метод в класс WebSocketMessageProcessor
     private String handleJsonMessage(AsynchronousSocketChannel client, String message, WebSocketServer.WebSocketClient wsClient) {
         try {
@@ -69,11 +162,17 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
             String type = (String) messageData.get("type");
 
             if ("auth".equals(type)) {
-                return handleJsonAuth(messageData, wsClient);
+                return handleJsonAuth(client, messageData, wsClient);
             } else if ("message".equals(type)) {
-                return handleJsonMessageSend(messageData, wsClient);
+                return handleJsonMessageSend(client, messageData, wsClient);
             } else if ("join_chat".equals(type)) {
                 return handleJsonJoinChat(messageData, wsClient,client);
+            } else if ("typing".equals(type)) {
+                Number chatIdNumber = (Number) messageData.get("chat_id");
+                if (chatIdNumber != null) {
+                    handleTyping(client, chatIdNumber.intValue(), wsClient);
+                }
+                return null;
             } else if ("get_chats".equals(type)) {
             //    return handleGetChatsJson(wsClient);
             } else if ("get_messages".equals(type)) {
@@ -100,24 +199,17 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
             String chatId = String.valueOf(chatIdNumber.intValue());
             int userId = Integer.parseInt(wsClient.getUserId());
 
-            try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            try (Connection conn = Database.getConnection()) {
                 // Проверяем доступ к чату
-                String checkSql = "SELECT 1 FROM chat_members WHERE chat_id = ? AND user_id = ?";
-                try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
-                    checkStmt.setInt(1, Integer.parseInt(chatId));
-                    checkStmt.setInt(2, userId);
-                    if (!checkStmt.executeQuery().next()) {
-                        return "{\"type\":\"error\",\"message\":\"Access denied to chat\"}";
-                    }
+                if (!MembershipCache.isMember(conn, Integer.parseInt(chatId), userId)) {
+                    return "{\"type\":\"error\",\"message\":\"Access denied to chat\"}";
                 }
 
                 // Устанавливаем текущий чат для клиента
-                wsClient.setCurrentChatId(chatId);
-                clientChats.put(client, chatId);
+                webSocketServer.joinChat(client, wsClient, chatId);
 
                 // Получаем информацию о чате
-                String chatInfoSql = "SELECT chat_name, chat_type FROM chats WHERE chat_id = ?";
-                try (PreparedStatement stmt = conn.prepareStatement(chatInfoSql)) {
+                try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_CHAT_INFO)) {
                     stmt.setInt(1, Integer.parseInt(chatId));
                     ResultSet rs = stmt.executeQuery();
                     if (rs.next()) {
@@ -145,7 +237,7 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
             return "{\"type\":\"error\",\"message\":\"Invalid request format\"}";
         }
     }
-    private String handleJsonMessageSend(Map<String, Object> messageData, WebSocketServer.WebSocketClient wsClient) {
+    private String handleJsonMessageSend(AsynchronousSocketChannel client, Map<String, Object> messageData, WebSocketServer.WebSocketClient wsClient) {
         if (!wsClient.isAuthenticated()) {
             return "{\"type\":\"error\",\"message\":\"Not authenticated\"}";
         }
@@ -164,50 +256,21 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
         String chatId = String.valueOf(chatIdNumber.intValue());
         int userId = Integer.parseInt(wsClient.getUserId());
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            // Дополнительная проверка доступа к чату
-            String checkSql = "SELECT 1 FROM chat_members WHERE chat_id = ? AND user_id = ?";
-            try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
-                checkStmt.setInt(1, Integer.parseInt(chatId));
-                checkStmt.setInt(2, userId);
-                ResultSet rs = checkStmt.executeQuery();
-                if (!rs.next()) {
-                    return "{\"type\":\"error\",\"message\":\"Access denied to chat\"}";
-                }
+        try {
+            MessageStore.StoredMessage stored = MessageStore.send(Integer.parseInt(chatId), userId, text);
+            if (stored == null) {
+                return "{\"type\":\"error\",\"message\":\"Access denied to chat\"}";
             }
+            String senderName = getSenderName(wsClient, userId);
 
-            // Сохраняем сообщение в базу
-            String insertSql = "INSERT INTO messages (chat_id, sender_id, message_text) VALUES (?, ?, ?)";
-            try (PreparedStatement insertStmt = conn.prepareStatement(insertSql, PreparedStatement.RETURN_GENERATED_KEYS)) {
-                insertStmt.setInt(1, Integer.parseInt(chatId));
-                insertStmt.setInt(2, userId);
-                insertStmt.setString(3, text);
-                insertStmt.executeUpdate();
+            broadcastNewMessage(stored, senderName);
 
-                ResultSet rs = insertStmt.getGeneratedKeys();
-                if (rs.next()) {
-                    int messageId = rs.getInt(1);
-                    Timestamp sentAt = getMessageTimestamp(conn, messageId);
-                    String senderName = getUsernameById(conn, userId);
-
-                    // Формируем JSON ответ
-                    Map<String, Object> response = new HashMap<>();
-                    response.put("type", "new_message");
-                    response.put("message_id", messageId);
-                    response.put("chat_id", chatId);
-                    response.put("sender_id", userId);
-                    response.put("sender_name", senderName);
-                    response.put("text", text);
-                    response.put("time", sentAt.toString());
-                    response.put("is_own", true);
-
-                    // Рассылаем всем участникам
-                    String broadcastMessage = JsonBuilder.build(response);
-                    webSocketServer.broadcastToChat(chatId, broadcastMessage);
-
-                    return "{\"type\":\"message_sent\",\"message_id\":" + messageId + "}";
-                }
-            }
+            return acknowledge(stored,
+                    "{\"type\":\"message_sent\",\"message_id\":" + stored.getMessageId() + "}",
+                    "{\"type\":\"error\",\"message\":\"Failed to save message\",\"message_id\":" + stored.getMessageId() + "}",
+                    reply -> webSocketServer.sendWebSocketMessage(client, reply));
+        } catch (MessageStore.StoreBusyException e) {
+            return "{\"type\":\"error\",\"message\":\"Server is busy, message not sent\"}";
         } catch (SQLException e) {
             e.printStackTrace();
             return "{\"type\":\"error\",\"message\":\"Database error: " + e.getMessage() + "\"}";
@@ -215,17 +278,13 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
             e.printStackTrace();
             return "{\"type\":\"error\",\"message\":\"Failed to send message: " + e.getMessage() + "\"}";
         }
-
-        return "{\"type\":\"error\",\"message\":\"Failed to send message\"}";
     }
-    private String handleJsonAuth(Map<String, Object> messageData, WebSocketServer.WebSocketClient wsClient) {
+    private String handleJsonAuth(AsynchronousSocketChannel client, Map<String, Object> messageData, WebSocketServer.WebSocketClient wsClient) {
         String token = (String) messageData.get("token");
         SimpleTokenUtils.TokenData tokenData = SimpleTokenUtils.validateToken(token);
 
         if (tokenData != null) {
-            wsClient.setAuthenticated(true);
-            wsClient.setUserId(String.valueOf(tokenData.getUserId()));
-            wsClient.setUsername(tokenData.getUsername());
+            webSocketServer.authenticate(client, wsClient, tokenData.getUserId(), tokenData.getUsername());
 
             Map<String, Object> response = new HashMap<>();
             response.put("type", "auth");
@@ -248,9 +307,7 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
         SimpleTokenUtils.TokenData tokenData = SimpleTokenUtils.validateToken(token);
 
         if (tokenData != null) {
-            wsClient.setAuthenticated(true);
-            wsClient.setUserId(String.valueOf(tokenData.getUserId()));
-            wsClient.setUsername(tokenData.getUsername());
+            webSocketServer.authenticate(client, wsClient, tokenData.getUserId(), tokenData.getUsername());
 
             return "AUTH_SUCCESS:" + tokenData.getUserId() + ":" + tokenData.getUsername();
         }
@@ -265,25 +322,16 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
 
         String chatId = message.substring(10).trim();
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+        try (Connection conn = Database.getConnection()) {
             int userId = Integer.parseInt(wsClient.getUserId());
 
-            String checkSql = "SELECT 1 FROM chat_members cm " +
-                    "JOIN chats c ON cm.chat_id = c.chat_id " +
-                    "WHERE cm.chat_id = ? AND cm.user_id = ?";
-            try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
-                checkStmt.setInt(1, Integer.parseInt(chatId));
-                checkStmt.setInt(2, userId);
-                if (!checkStmt.executeQuery().next()) {
-                    return "ERROR: Access denied to chat";
-                }
+            if (!MembershipCache.isMember(conn, Integer.parseInt(chatId), userId)) {
+                return "ERROR: Access denied to chat";
             }
 
-            wsClient.setCurrentChatId(chatId);
-            clientChats.put(client, chatId);
+            webSocketServer.joinChat(client, wsClient, chatId);
 
-            String chatInfoSql = "SELECT chat_name, chat_type FROM chats WHERE chat_id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(chatInfoSql)) {
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_CHAT_INFO)) {
                 stmt.setInt(1, Integer.parseInt(chatId));
                 ResultSet rs = stmt.executeQuery();
                 if (rs.next()) {
@@ -314,31 +362,22 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
         String chatId = wsClient.getCurrentChatId();
         int userId = Integer.parseInt(wsClient.getUserId());
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String insertSql = "INSERT INTO messages (chat_id, sender_id, message_text) VALUES (?, ?, ?)";
-            try (PreparedStatement insertStmt = conn.prepareStatement(insertSql, PreparedStatement.RETURN_GENERATED_KEYS)) {
-                insertStmt.setInt(1, Integer.parseInt(chatId));
-                insertStmt.setInt(2, userId);
-                insertStmt.setString(3, text);
-                insertStmt.executeUpdate();
-
-                ResultSet rs = insertStmt.getGeneratedKeys();
-                if (rs.next()) {
-                    int messageId = rs.getInt(1);
-                    Timestamp sentAt = getMessageTimestamp(conn, messageId);
-
-                    String senderName = getUsernameById(conn, userId);
-
-                    String broadcastMessage = String.format("NEW_MESSAGE:%d:%s:%s:%d:%s",
-                            userId, senderName, text, messageId, sentAt.toString());
-
-                    webSocketServer.broadcastToChat(chatId, broadcastMessage);
-
-                    return "MESSAGE_SENT:" + messageId;
-                }
+        try {
+            MessageStore.StoredMessage stored = MessageStore.send(Integer.parseInt(chatId), userId, text);
+            if (stored == null) {
+                return "ERROR: Access denied to chat";
             }
+            String senderName = getSenderName(wsClient, userId);
+
+            webSocketServer.broadcastEvent(chatId,
+                    () -> String.format("NEW_MESSAGE:%d:%s:%s:%d:%s",
+                            userId, senderName, text, stored.getMessageId(), stored.getSentAt().toString()),
+                    () -> newMessageEvent(stored, senderName),
+                    null);
 
-            return "ERROR: Failed to save message";
+            return acknowledge(stored, "MESSAGE_SENT:" + stored.getMessageId(),
+                    "ERROR: Failed to save message " + stored.getMessageId(),
+                    reply -> webSocketServer.sendWebSocketMessage(client, reply));
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -353,7 +392,7 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
 
         int userId = Integer.parseInt(wsClient.getUserId());
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+        try (Connection conn = Database.getConnection()) {
             String sql = """
                 SELECT c.chat_id, c.chat_name, c.chat_type, 
                        (SELECT message_text FROM messages 
@@ -411,36 +450,39 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
 
         String chatId = parts[1];
         int userId = Integer.parseInt(wsClient.getUserId());
+        // GET_MESSAGES:chatId[:beforeMessageId[:limit]]
+        int beforeMessageId;
+        int limit;
+        try {
+            beforeMessageId = parts.length > 2 && !parts[2].isEmpty() ? Integer.parseInt(parts[2]) : Integer.MAX_VALUE;
+            limit = parts.length > 3 ? Integer.parseInt(parts[3]) : DEFAULT_MESSAGES_LIMIT;
+        } catch (NumberFormatException e) {
+            return "ERROR: Invalid format";
+        }
+        limit = Math.max(1, Math.min(limit, MAX_MESSAGES_LIMIT));
 
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+        try (Connection conn = Database.getConnection()) {
             // Проверяем доступ к чату
-            String checkSql = "SELECT * FROM chat_members WHERE chat_id = ? AND user_id = ?";
-            try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
-                checkStmt.setInt(1, Integer.parseInt(chatId));
-                checkStmt.setInt(2, userId);
-                if (!checkStmt.executeQuery().next()) {
-                    return "ERROR: Access denied";
-                }
+            if (!MembershipCache.isMember(conn, Integer.parseInt(chatId), userId)) {
+                return "ERROR: Access denied";
             }
 
-            String sql = """
-                SELECT m.message_id, m.message_text, m.sent_at, 
-                       u.user_id as sender_id, u.user_name as sender_name,
-                       (u.user_id = ?) as is_own_message
-                FROM messages m
-                JOIN users u ON m.sender_id = u.user_id
-                WHERE m.chat_id = ? AND m.is_deleted = false
-                ORDER BY m.sent_at ASC
-                """;
-
-            StringBuilder response = new StringBuilder("MESSAGES:" + chatId + ":");
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            StringBuilder rows = new StringBuilder();
+            int count = 0;
+            int oldestMessageId = 0;
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_MESSAGES_PAGE)) {
                 stmt.setInt(1, userId);
                 stmt.setInt(2, Integer.parseInt(chatId));
+                stmt.setInt(3, beforeMessageId);
+                stmt.setInt(4, limit);
                 ResultSet rs = stmt.executeQuery();
 
                 while (rs.next()) {
-                    response.append(rs.getInt("message_id")).append(":")
+                    int messageId = rs.getInt("message_id");
+                    if (count++ == 0) {
+                        oldestMessageId = messageId;
+                    }
+                    rows.append(messageId).append(":")
                             .append(rs.getInt("sender_id")).append(":")
                             .append(rs.getString("sender_name")).append(":")
                             .append(rs.getString("message_text")).append(":")
@@ -449,6 +491,13 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
                 }
             }
 
+            // MESSAGES:chatId:nextBeforeMessageId:rows - курсор пустой, если история закончилась
+            StringBuilder response = new StringBuilder("MESSAGES:" + chatId + ":");
+            if (count == limit) {
+                response.append(oldestMessageId);
+            }
+            response.append(":").append(rows);
+
             updateReadReceipts(conn, userId, Integer.parseInt(chatId));
 
             return response.toString();
@@ -460,18 +509,7 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
     }
 
     private void updateReadReceipts(Connection conn, int userId, int chatId) throws SQLException {
-        String sql = """
-            INSERT INTO read_receipts (message_id, user_id, read_at)
-            SELECT m.message_id, ?, NOW()
-            FROM messages m
-            WHERE m.chat_id = ? AND m.sent_at <= NOW()
-            AND NOT EXISTS (
-                SELECT 1 FROM read_receipts rr 
-                WHERE rr.message_id = m.message_id AND rr.user_id = ?
-            )
-            """;
-
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.INSERT_READ_RECEIPTS)) {
             stmt.setInt(1, userId);
             stmt.setInt(2, chatId);
             stmt.setInt(3, userId);
@@ -479,21 +517,46 @@ public class WebSocketMessageProcessor implements WebSocketServer.MessageProcess
         }
     }
 
-    private String getUsernameById(Connection conn, int userId) throws SQLException {
-        String sql = "SELECT user_name FROM users WHERE user_id = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() ? rs.getString("user_name") : "Unknown";
-        }
+    // Имя известно из токена при авторизации; в БД идём только если его нет
+    private String getSenderName(WebSocketServer.WebSocketClient wsClient, int userId) throws SQLException {
+        String username = wsClient.getUsername();
+        return username != null ? username : UserProfileCache.getUsername(userId);
+    }
+
+    /**
+     * Рассылает новое сообщение: текстовым клиентам - JSON, клиентам chat.binary.v1 - событие NEW_MESSAGE
+     */
+    private void broadcastNewMessage(MessageStore.StoredMessage stored, String senderName) {
+        webSocketServer.broadcastEvent(String.valueOf(stored.getChatId()), () -> {
+            Map<String, Object> response = new HashMap<>();
+            response.put("type", "new_message");
+            response.put("message_id", stored.getMessageId());
+            response.put("chat_id", String.valueOf(stored.getChatId()));
+            response.put("sender_id", stored.getSenderId());
+            response.put("sender_name", senderName);
+            response.put("text", stored.getText());
+            response.put("time", stored.getSentAt().toString());
+            response.put("is_own", true);
+            return JsonBuilder.build(response);
+        }, () -> newMessageEvent(stored, senderName), null);
+    }
+
+    private static byte[] newMessageEvent(MessageStore.StoredMessage stored, String senderName) {
+        return BinaryProtocol.newMessage(stored.getMessageId(), stored.getChatId(), stored.getSenderId(),
+                stored.getSentAt().getTime(), senderName, stored.getText());
     }
 
-    private Timestamp getMessageTimestamp(Connection conn, int messageId) throws SQLException {
-        String sql = "SELECT sent_at FROM messages WHERE message_id = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, messageId);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() ? rs.getTimestamp("sent_at") : new Timestamp(System.currentTimeMillis());
+    /**
+     * Подтверждение отправки уходит только после сохранения сообщения (в БД или
+     * в локальном журнале): если оно уже сохранено - сразу ответом, иначе - через
+     * send по завершении persisted()
+     */
+    private static <T> T acknowledge(MessageStore.StoredMessage stored, T ack, T failure, Consumer<T> send) {
+        CompletableFuture<MessageStore.StoredMessage> persisted = stored.persisted();
+        if (persisted.isDone() && !persisted.isCompletedExceptionally()) {
+            return ack;
         }
+        persisted.whenComplete((message, error) -> send.accept(error == null ? ack : failure));
+        return null;
     }
-}
\ No newline at end of file
+}
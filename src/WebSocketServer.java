@@ -1,8 +1,19 @@
+import http.httpdiff.HttpMethod;
+import http.httpdiff.HttpRequest;
+import http.httpdiff.HttpRequestParser;
+import chat.PresenceService;
 import security.SimpleTokenUtils;
+import websocket.BinaryProtocol;
+import websocket.FrameSlab;
+import websocket.HeartbeatWheel;
+import websocket.OutboundQueue;
+import websocket.PerMessageDeflate;
+import websocket.SessionExecutor;
+import websocket.WebSocketFrameDecoder;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
@@ -10,51 +21,121 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 import java.util.Arrays;
 
 public class WebSocketServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int HANDSHAKE_MAX_SIZE = 16 * 1024;
+    private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+    // Ping без данных одинаков для всех клиентов
+    private static final ByteBuffer PING_FRAME = encodeFrame(0x9, new byte[0], null, false);
+    private static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 4;
+
     private final int port;
     private final ConcurrentHashMap<AsynchronousSocketChannel, WebSocketClient> clients = new ConcurrentHashMap<>();
+    // chat_id -> подключения, открывшие этот чат; рассылка идёт только по ним
+    private final ConcurrentHashMap<String, Set<AsynchronousSocketChannel>> chatSubscribers = new ConcurrentHashMap<>();
+    // user_id -> авторизованные подключения пользователя; по ним считается присутствие
+    private final ConcurrentHashMap<Integer, Set<AsynchronousSocketChannel>> userConnections = new ConcurrentHashMap<>();
     private final MessageProcessor messageProcessor;
     private AsynchronousServerSocketChannel server;
-
-    private final List<String> allowedOrigins = Arrays.asList(
-            "http://192.168.100.5:8088",
-            "http://192.168.100.5:3000"
-    );
+    // tcpNoDelay/sendBufferSize применяются к каждому подключению; ioThreads, backlog
+    // и receiveBufferSize - только к отдельному слушателю (websocket.standalone)
+    private final ChannelSettings channelSettings = new ChannelSettings("websocket", "websocket");
+    // null, если отдельный слушатель не запущен
+    private AsynchronousChannelGroup group;
+    // Сколько неотправленных байт допускается на подключение, прежде чем клиент будет отключён
+    private final long outboundHighWaterMark;
+    private final long writeTimeoutMs;
+    private final int maxMessageSize;
+    private final boolean deflateEnabled;
+    private final boolean deflateServerNoContextTakeover;
+    private final int deflateMinSize;
+    // Обработка сообщений (JDBC) вне потоков ввода-вывода, по порядку для каждого подключения
+    private final SessionExecutor sessionExecutor;
+    // Ping простаивающим клиентам и отключение тех, кто не отвечает
+    private final HeartbeatWheel heartbeat;
+    // Direct-память для кадров, общих для нескольких получателей
+    private final FrameSlab broadcastSlab;
+
+    private final List<String> allowedOrigins;
 
     public WebSocketServer(int port) {
         this.port = port;
         this.messageProcessor = new WebSocketMessageProcessor(this);
+        this.outboundHighWaterMark = config.Config.getInt("websocket.outboundHighWaterMark", 1024 * 1024);
+        this.writeTimeoutMs = config.Config.getInt("websocket.writeTimeoutMs", 30000);
+        this.maxMessageSize = config.Config.getInt("websocket.maxMessageSize", 1024 * 1024);
+        this.deflateEnabled = config.Config.getBoolean("websocket.deflate.enabled", true);
+        this.deflateServerNoContextTakeover = config.Config.getBoolean("websocket.deflate.serverNoContextTakeover", true);
+        this.deflateMinSize = config.Config.getInt("websocket.deflate.minSize", 256);
+        this.broadcastSlab = new FrameSlab(config.Config.getInt("websocket.broadcastSlabSize", 256 * 1024));
+        this.allowedOrigins = Arrays.asList(config.Config.get("websocket.allowedOrigins",
+                "http://192.168.100.5:8088,http://192.168.100.5:3000").split("\\s*,\\s*"));
+        this.sessionExecutor = new SessionExecutor(
+                config.Config.getInt("websocket.workerThreads", DEFAULT_WORKER_THREADS),
+                config.Config.getInt("websocket.maxPendingCommands", 64));
+        this.heartbeat = new HeartbeatWheel(
+                config.Config.getInt("websocket.pingIntervalMs", 30000),
+                config.Config.getInt("websocket.heartbeatTickMs", 1000),
+                config.Config.getInt("websocket.maxMissedPongs", 2));
+        heartbeat.start();
     }
-    public void handleWebSocketConnection(AsynchronousSocketChannel client, String requestData) {
+    /**
+     * Переводит HTTP-подключение на WebSocket. Запрос уже разобран HTTP-сервером
+     * (или отдельным слушателем); leftover - байты, прочитанные из сокета после
+     * запроса (первые кадры клиента), они разбираются до следующего чтения.
+     * Токен берётся из ?token=, cookie auth_token или Authorization: Bearer и
+     * проверяется один раз; без токена клиент может авторизоваться сообщением auth
+     */
+    public void upgrade(AsynchronousSocketChannel client, HttpRequest request, ByteBuffer leftover) {
         try {
-            if (isWebSocketHandshake(requestData)) {
-                if (!isOriginAllowed(requestData)) {
-                    sendForbiddenResponse(client);
-                    cleanupClient(client);
-                    return;
-                }
+            String key = request.getHeader("Sec-WebSocket-Key");
+            if (request.getMethod() != HttpMethod.GET || key == null
+                    || !"13".equals(request.getHeader("Sec-WebSocket-Version"))) {
+                rejectUpgrade(client, 400, "Invalid WebSocket handshake");
+                return;
+            }
+            String origin = request.getHeader("Origin");
+            if (!isOriginAllowed(origin)) {
+                rejectUpgrade(client, 403, "Origin not allowed");
+                return;
+            }
 
-                handleWebSocketHandshake(client, requestData);
-                clients.put(client, new WebSocketClient());
-                startReading(client);
-            } else {
-                cleanupClient(client);
+            WebSocketClient wsClient = new WebSocketClient();
+            String token = extractToken(request);
+            if (token != null) {
+                SimpleTokenUtils.TokenData tokenData = SimpleTokenUtils.validateToken(token);
+                if (tokenData != null) {
+                    wsClient.setAuthenticated(true);
+                    wsClient.setUserId(String.valueOf(tokenData.getUserId()));
+                    wsClient.setUsername(tokenData.getUsername());
+                } else {
+                    System.out.println("WebSocket handshake with invalid token");
+                }
             }
+
+            ByteBuffer response = handleWebSocketHandshake(wsClient, request, key, origin);
+            register(client, wsClient, response, leftover);
         } catch (Exception e) {
             e.printStackTrace();
             cleanupClient(client);
         }
     }
+
     public void start() {
         try {
-            server = AsynchronousServerSocketChannel.open();
-            server.bind(new InetSocketAddress("0.0.0.0", port));
+            group = channelSettings.openGroup();
+            server = channelSettings.openServer(group, "0.0.0.0", port);
 
-            System.out.println("WebSocket server started on port " + port);
+            System.out.println("WebSocket server started on port " + port
+                    + " (" + channelSettings.getIoThreads() + " I/O threads)");
 
             server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
                 @Override
@@ -65,7 +146,11 @@ public class WebSocketServer {
 
                 @Override
                 public void failed(Throwable exc, Void attachment) {
+                    if (!server.isOpen()) {
+                        return;
+                    }
                     System.err.println("Failed to accept connection: " + exc.getMessage());
+                    server.accept(null, this);
                 }
             });
 
@@ -74,196 +159,186 @@ public class WebSocketServer {
         }
     }
 
-    private void handleClient(AsynchronousSocketChannel client) {
+    /**
+     * Плавная остановка: новые подключения не принимаются, каждому клиенту после
+     * уже принятых сообщений отправляется Close 1001; затем ждём завершения
+     * обработки и закрытия подключений, не дольше timeoutMs
+     */
+    public void shutdown(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        System.out.println("Stopping WebSocket server (" + clients.size() + " clients)...");
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(2048);
-            client.read(buffer, buffer, new CompletionHandler<Integer, ByteBuffer>() {
-                @Override
-                public void completed(Integer result, ByteBuffer buffer) {
-                    if (result == -1) {
-                        cleanupClient(client);
-                        return;
-                    }
-
-                    buffer.flip();
-                    String request = StandardCharsets.UTF_8.decode(buffer).toString();
-
-                    if (isWebSocketHandshake(request)) {
-                        if (!isOriginAllowed(request)) {
-                            sendForbiddenResponse(client);
-                            cleanupClient(client);
-                            return;
-                        }
-
-                        String token = extractTokenFromRequest(request);
-                        System.out.println("Extracted token: " + (token != null ? token.substring(0, 20) + "..." : "null"));  WebSocketClient wsClient = new WebSocketClient();
-
-                        if (token != null) {
-                            SimpleTokenUtils.TokenData tokenData = SimpleTokenUtils.validateToken(token);
-                            System.out.println("Token validation result: " + (tokenData != null ? "VALID" : "INVALID"));
-                            if (tokenData != null) {
-                                wsClient.setAuthenticated(true);
-                                wsClient.setUserId(String.valueOf(tokenData.getUserId()));
-                            }
-                        }
-
-                        try {
-                            handleWebSocketHandshake(client, request);
-                            clients.put(client, wsClient);
-                            startReading(client);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            cleanupClient(client);
-                        }
-                    } else {
-                        cleanupClient(client);
-                    }
-                }
-
-                @Override
-                public void failed(Throwable exc, ByteBuffer buffer) {
-                    cleanupClient(client);
+            if (server != null) {
+                server.close();
+            }
+            for (Map.Entry<AsynchronousSocketChannel, WebSocketClient> entry : clients.entrySet()) {
+                AsynchronousSocketChannel client = entry.getKey();
+                entry.getValue().getSession().execute(() -> sendClose(client, WebSocketFrameDecoder.CLOSE_GOING_AWAY));
+            }
+            heartbeat.stop();
+            if (!sessionExecutor.shutdown(remainingMs(deadline))) {
+                System.err.println("WebSocket messages still processing after " + timeoutMs + " ms");
+            }
+            if (group != null) {
+                group.shutdown();
+                if (!group.awaitTermination(remainingMs(deadline), TimeUnit.MILLISECONDS)) {
+                    group.shutdownNow();
                 }
-            });
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            cleanupClient(client);
+            }
+        } catch (IOException e) {
+            System.err.println("Error stopping WebSocket server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        System.out.println("WebSocket server stopped");
     }
-    private String extractTokenFromRequest(String request) {
-        System.out.println("Request: " + request);
 
-        if (request.contains("GET /")) {
-            String[] lines = request.split("\r\n");
-            String firstLine = lines[0];
-
-            if (firstLine.contains("?")) {
-                String queryString = firstLine.split("\\?")[1].split(" ")[0];
-                System.out.println("Query string: " + queryString);
+    private static long remainingMs(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
 
-                String[] params = queryString.split("&");
-                for (String param : params) {
-                    if (param.startsWith("token=")) {
-                        String tokenValue = param.substring(6);
-                        System.out.println("Found token in query: " + tokenValue);
-                        return tokenValue;
-                    }
+    /**
+     * Отдельный слушатель: читает запрос до конца заголовков и передаёт его в upgrade()
+     */
+    private void handleClient(AsynchronousSocketChannel client) {
+        HttpRequestParser parser = new HttpRequestParser(HANDSHAKE_MAX_SIZE, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        client.read(buffer, HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+            @Override
+            public void completed(Integer result, ByteBuffer buffer) {
+                if (result == -1) {
+                    cleanupClient(client);
+                    return;
                 }
-            }
 
-            for (String line : lines) {
-                if (line.startsWith("Cookie:")) {
-                    String cookieHeader = line.substring("Cookie:".length()).trim();
-                    System.out.println("Cookie header: " + cookieHeader);
-
-                    String[] cookies = cookieHeader.split(";");
-                    for (String cookie : cookies) {
-                        cookie = cookie.trim();
-                        if (cookie.startsWith("auth_token=")) { // ФИКС: меняем token= на auth_token=
-                            String tokenValue = cookie.substring("auth_token=".length());
-                            System.out.println("Found token in cookie: " + tokenValue);
-                            return tokenValue;
-                        }
-                    }
+                buffer.flip();
+                HttpRequest request;
+                try {
+                    request = parser.parse(buffer);
+                } catch (HttpRequestParser.HttpParseException e) {
+                    rejectUpgrade(client, e.getStatusCode(), e.getMessage());
+                    return;
                 }
-            }
-
-            for (String line : lines) {
-                if (line.startsWith("Authorization:")) {
-                    String authHeader = line.substring("Authorization:".length()).trim();
-                    if (authHeader.startsWith("Bearer ")) {
-                        String tokenValue = authHeader.substring(7);
-                        System.out.println("Found token in Authorization header: " + tokenValue);
-                        return tokenValue;
-                    }
+                if (request == null) {
+                    buffer.clear();
+                    client.read(buffer, HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS, buffer, this);
+                    return;
                 }
+                upgrade(client, request, buffer);
             }
-        }
 
-        System.out.println("No token found in request");
-        return null;
+            @Override
+            public void failed(Throwable exc, ByteBuffer buffer) {
+                cleanupClient(client);
+            }
+        });
     }
 
-    private boolean isWebSocketHandshake(String request) {
-        return request.contains("Upgrade: websocket") &&
-                request.contains("Sec-WebSocket-Key");
+    /**
+     * Токен из query (?token=), cookie auth_token или заголовка Authorization: Bearer
+     */
+    private static String extractToken(HttpRequest request) {
+        String token = request.getQueryParam("token");
+        if (token != null && !token.isEmpty()) {
+            return token;
+        }
+        token = request.getCookie("auth_token");
+        if (token != null && !token.isEmpty()) {
+            return token;
+        }
+        String authorization = request.getHeader("Authorization");
+        if (authorization != null && authorization.startsWith("Bearer ")) {
+            return authorization.substring("Bearer ".length()).trim();
+        }
+        return null;
     }
 
-    private boolean isOriginAllowed(String request) {
-        String origin = extractOrigin(request);
+    private boolean isOriginAllowed(String origin) {
         if (origin == null) {
-            System.out.println("Origin header missing, allowing for development");
+            // Не браузер (или старый клиент) - Origin не присылает
             return true;
         }
-
-        for (String allowedOrigin : allowedOrigins) {
-            if (origin.equals(allowedOrigin)) {
-                return true;
-            }
+        if (allowedOrigins.contains(origin)) {
+            return true;
         }
-
         System.out.println("Origin not allowed: " + origin);
         return false;
     }
 
+    /**
+     * Отвечает ошибкой на неудачный handshake и закрывает подключение после записи
+     */
+    private void rejectUpgrade(AsynchronousSocketChannel client, int statusCode, String reason) {
+        byte[] body = reason.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + statusCode + " " + reason + "\r\n" +
+                "Content-Type: text/plain; charset=UTF-8\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Connection: close\r\n" +
+                "\r\n";
+        ByteBuffer response = ByteBuffer.allocate(head.length() + body.length)
+                .put(head.getBytes(StandardCharsets.US_ASCII)).put(body).flip();
+        try {
+            client.write(response, writeTimeoutMs, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer result, Void attachment) {
+                    if (response.hasRemaining()) {
+                        client.write(response, writeTimeoutMs, TimeUnit.MILLISECONDS, null, this);
+                    } else {
+                        cleanupClient(client);
+                    }
+                }
 
-    private String extractOrigin(String request) {
-        String[] lines = request.split("\r\n");
-        for (String line : lines) {
-            if (line.startsWith("Origin:")) {
-                return line.substring("Origin:".length()).trim();
-            }
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    cleanupClient(client);
+                }
+            });
+        } catch (RuntimeException e) {
+            cleanupClient(client);
         }
-        return null;
     }
 
-    private void sendForbiddenResponse(AsynchronousSocketChannel client) {
-        try {
-            String response = "HTTP/1.1 403 Forbidden\r\n" +
-                    "Content-Type: text/plain\r\n" +
-                    "Connection: close\r\n" +
-                    "\r\n" +
-                    "Origin not allowed";
-            client.write(ByteBuffer.wrap(response.getBytes())).get();
-        } catch (Exception e) {
-            System.err.println("Error sending forbidden response: " + e.getMessage());
+    /**
+     * Готовит ответ 101 и запоминает в wsClient согласованные
+     * permessage-deflate и подпротокол chat.binary.v1
+     */
+    private ByteBuffer handleWebSocketHandshake(WebSocketClient wsClient, HttpRequest request, String key, String origin)
+            throws Exception {
+        PerMessageDeflate deflate = deflateEnabled
+                ? PerMessageDeflate.negotiate(headerValues(request, "Sec-WebSocket-Extensions"),
+                        deflateServerNoContextTakeover, deflateMinSize)
+                : null;
+        boolean binaryProtocol = BinaryProtocol.isOffered(headerValues(request, "Sec-WebSocket-Protocol"));
+        wsClient.setDeflate(deflate);
+        wsClient.setBinaryProtocol(binaryProtocol);
+
+        StringBuilder response = new StringBuilder("HTTP/1.1 101 Switching Protocols\r\n")
+                .append("Upgrade: websocket\r\n")
+                .append("Connection: Upgrade\r\n")
+                .append("Sec-WebSocket-Accept: ").append(generateAcceptKey(key)).append("\r\n");
+        if (deflate != null) {
+            response.append("Sec-WebSocket-Extensions: ").append(deflate.getResponseHeader()).append("\r\n");
+        }
+        if (binaryProtocol) {
+            response.append("Sec-WebSocket-Protocol: ").append(BinaryProtocol.NAME).append("\r\n");
         }
-    }
-
-
-    private void handleWebSocketHandshake(AsynchronousSocketChannel client, String request) throws Exception {
-        String key = extractWebSocketKey(request);
-        String acceptKey = generateAcceptKey(key);
-        String origin = extractOrigin(request);
-
-        System.out.println("WebSocket handshake from origin: " + origin);
-
-        String response = "HTTP/1.1 101 Switching Protocols\r\n" +
-                "Upgrade: websocket\r\n" +
-                "Connection: Upgrade\r\n" +
-                "Sec-WebSocket-Accept: " + acceptKey + "\r\n";
-
         if (origin != null) {
-            response += "Access-Control-Allow-Origin: " + origin + "\r\n";
-            response += "Access-Control-Allow-Credentials: true\r\n";
+            response.append("Access-Control-Allow-Origin: ").append(origin).append("\r\n");
+            response.append("Access-Control-Allow-Credentials: true\r\n");
         }
+        response.append("\r\n");
 
-        response += "\r\n";
-
-        client.write(ByteBuffer.wrap(response.getBytes())).get();
-        System.out.println("WebSocket handshake completed");
+        System.out.println("WebSocket handshake from origin: " + origin
+                + (wsClient.isAuthenticated() ? ", user " + wsClient.getUserId() : ", not authenticated"));
+        return ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.US_ASCII));
     }
 
-
-    private String extractWebSocketKey(String request) {
-        String[] lines = request.split("\r\n");
-        for (String line : lines) {
-            if (line.startsWith("Sec-WebSocket-Key:")) {
-                return line.substring("Sec-WebSocket-Key:".length()).trim();
-            }
-        }
-        return null;
+    /**
+     * Значения всех строк заголовка через запятую; null - заголовка нет
+     */
+    private static String headerValues(HttpRequest request, String header) {
+        List<String> values = request.getHeaders().getAll(header);
+        return values.isEmpty() ? null : String.join(", ", values);
     }
 
     private String generateAcceptKey(String key) throws Exception {
@@ -273,10 +348,47 @@ public class WebSocketServer {
         return Base64.getEncoder().encodeToString(digest);
     }
 
-    private void startReading(AsynchronousSocketChannel client) {
-        ByteBuffer buffer = ByteBuffer.allocate(4096);
+    /**
+     * Регистрирует подключение: ответ 101 уходит первым кадром исходящей очереди,
+     * затем разбираются уже прочитанные байты и начинается чтение кадров
+     */
+    private void register(AsynchronousSocketChannel client, WebSocketClient wsClient, ByteBuffer handshakeResponse,
+                          ByteBuffer leftover) {
+        // Подключение могло прийти через HTTP-сервер с его настройками сокета
+        channelSettings.configure(client);
+        wsClient.setOutbound(new OutboundQueue(client, outboundHighWaterMark, writeTimeoutMs,
+                () -> cleanupClient(client)));
+        wsClient.setSession(sessionExecutor.newSession());
+        wsClient.setHeartbeat(heartbeat.register(
+                () -> sendPing(client),
+                () -> {
+                    System.out.println("WebSocket client " + wsClient.getUserId() + " missed pongs, closing");
+                    sendClose(client, WebSocketFrameDecoder.CLOSE_GOING_AWAY);
+                }));
+        wsClient.getOutbound().enqueue(handshakeResponse);
+        clients.put(client, wsClient);
+        if (wsClient.isAuthenticated()) {
+            synchronized (wsClient) {
+                track(client, wsClient, Integer.parseInt(wsClient.getUserId()));
+            }
+        }
+        System.out.println("WebSocket handshake completed");
+        startReading(client, leftover);
+    }
 
-        client.read(buffer, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+    /**
+     * Чтение кадров в потоке ввода-вывода: здесь только разбор, сообщения
+     * уходят в очередь подключения. Пока очередь заполнена, следующее
+     * чтение не запускается - клиент упирается в TCP-окно
+     */
+    private void startReading(AsynchronousSocketChannel client, ByteBuffer leftover) {
+        WebSocketClient wsClient = clients.get(client);
+        SessionExecutor.Session session = wsClient.getSession();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, leftover != null ? leftover.remaining() : 0));
+        WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(maxMessageSize, wsClient.getDeflate());
+        WebSocketFrameDecoder.Listener listener = frameListener(client, session);
+
+        CompletionHandler<Integer, ByteBuffer> reader = new CompletionHandler<Integer, ByteBuffer>() {
             @Override
             public void completed(Integer result, ByteBuffer buffer) {
                 if (result == -1) {
@@ -284,16 +396,27 @@ public class WebSocketServer {
                     return;
                 }
 
+                wsClient.getHeartbeat().touch();
                 try {
                     buffer.flip();
-                    processWebSocketFrame(client, buffer);
+                    decoder.decode(buffer, listener);
+                } catch (WebSocketFrameDecoder.ProtocolException e) {
+                    System.err.println("WebSocket protocol error: " + e.getMessage());
+                    sendClose(client, e.getStatusCode());
+                    return;
                 } catch (Exception e) {
                     e.printStackTrace();
                     cleanupClient(client);
                     return;
                 }
+                if (decoder.isClosed()) {
+                    return;
+                }
 
                 buffer.clear();
+                if (session.pauseIfFull(() -> client.read(buffer, buffer, this))) {
+                    return;
+                }
                 client.read(buffer, buffer, this);
             }
 
@@ -301,54 +424,50 @@ public class WebSocketServer {
             public void failed(Throwable exc, ByteBuffer buffer) {
                 cleanupClient(client);
             }
-        });
+        };
+
+        if (leftover != null && leftover.hasRemaining()) {
+            // Кадры, пришедшие одним пакетом с запросом handshake
+            buffer.put(leftover);
+            reader.completed(buffer.position(), buffer);
+        } else {
+            client.read(buffer, buffer, reader);
+        }
     }
 
-    private void processWebSocketFrame(AsynchronousSocketChannel client, ByteBuffer buffer) throws Exception {
-        byte firstByte = buffer.get();
-        byte secondByte = buffer.get();
-
-        int opcode = firstByte & 0x0F;
-        boolean masked = (secondByte & 0x80) != 0;
-        int payloadLength = secondByte & 0x7F;
-
-        if (payloadLength == 126) {
-            payloadLength = buffer.getShort() & 0xFFFF;
-        } else if (payloadLength == 127) {
-            payloadLength = (int) buffer.getLong();
-        }
+    private WebSocketFrameDecoder.Listener frameListener(AsynchronousSocketChannel client,
+                                                         SessionExecutor.Session session) {
+        return new WebSocketFrameDecoder.Listener() {
+            @Override
+            public void onText(String message) {
+                session.execute(() -> handleWebSocketMessage(client, message));
+            }
 
-        byte[] maskingKey = new byte[4];
-        if (masked) {
-            buffer.get(maskingKey);
-        }
+            @Override
+            public void onBinary(byte[] message) {
+                session.execute(() -> handleBinaryMessage(client, message));
+            }
 
-        byte[] payload = new byte[payloadLength];
-        buffer.get(payload);
+            @Override
+            public void onPing(byte[] payload) {
+                sendPong(client, payload);
+            }
 
-        // Демаскировка
-        if (masked) {
-            for (int i = 0; i < payload.length; i++) {
-                payload[i] ^= maskingKey[i % 4];
+            @Override
+            public void onPong(byte[] payload) {
+                // Активность уже отмечена при чтении
             }
-        }
 
-        if (opcode == 1) { // Text frame
-            String message = new String(payload, StandardCharsets.UTF_8);
-            handleWebSocketMessage(client, message);
-        } else if (opcode == 8) { // Close frame
-            cleanupClient(client);
-        } else if (opcode == 9) { // Ping frame
-            sendPong(client, payload);
-        } else if (opcode == 10) { // Pong frame
-            // Игнорируем
-        }
+            @Override
+            public void onClose(int statusCode) {
+                // После ответов на уже принятые сообщения
+                session.execute(() -> sendClose(client, WebSocketFrameDecoder.CLOSE_NORMAL));
+            }
+        };
     }
 
     private void handleWebSocketMessage(AsynchronousSocketChannel client, String message) {
         try {
-            System.out.println("Received WebSocket message: " + message);
-
             WebSocketClient wsClient = clients.get(client);
             if (messageProcessor != null && wsClient != null) {
                 String response = messageProcessor.processMessage(client, message, wsClient);
@@ -362,50 +481,224 @@ public class WebSocketServer {
         }
     }
 
-    public void sendWebSocketMessage(AsynchronousSocketChannel client, String message) {
+    private void handleBinaryMessage(AsynchronousSocketChannel client, byte[] message) {
         try {
-            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
-            ByteBuffer buffer = ByteBuffer.allocate(payload.length + 10);
-
-            buffer.put((byte) 0x81); // FIN + Text frame
-
-            if (payload.length <= 125) {
-                buffer.put((byte) payload.length);
-            } else if (payload.length <= 65535) {
-                buffer.put((byte) 126);
-                buffer.putShort((short) payload.length);
-            } else {
-                buffer.put((byte) 127);
-                buffer.putLong(payload.length);
+            WebSocketClient wsClient = clients.get(client);
+            if (messageProcessor != null && wsClient != null) {
+                byte[] response = messageProcessor.processBinary(client, message, wsClient);
+                if (response != null) {
+                    sendBinaryMessage(client, response);
+                }
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            buffer.put(payload);
-            buffer.flip();
+    public void sendWebSocketMessage(AsynchronousSocketChannel client, String message) {
+        WebSocketClient wsClient = clients.get(client);
+        if (wsClient != null) {
+            sendMessage(wsClient, 0x1, message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
 
-            client.write(buffer);
+    public void sendBinaryMessage(AsynchronousSocketChannel client, byte[] message) {
+        WebSocketClient wsClient = clients.get(client);
+        if (wsClient != null) {
+            sendMessage(wsClient, 0x2, message);
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            cleanupClient(client);
+    /**
+     * Отправляет сообщение, сжимая его, если клиент согласовал permessage-deflate
+     */
+    private static boolean sendMessage(WebSocketClient wsClient, int opcode, byte[] payload) {
+        PerMessageDeflate deflate = wsClient.getDeflate();
+        if (deflate == null || !deflate.shouldCompress(payload.length)) {
+            return sendFrame(wsClient, encodeFrame(opcode, payload, null, false));
+        }
+        // С context takeover кадры должны уходить в порядке сжатия
+        synchronized (deflate) {
+            return sendFrame(wsClient, encodeFrame(opcode, deflate.compress(payload), null, true));
         }
     }
 
-    private void sendPong(AsynchronousSocketChannel client, byte[] payload) {
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(payload.length + 10);
-            buffer.put((byte) 0x8A); // Pong frame
+    private void sendFrame(AsynchronousSocketChannel client, ByteBuffer frame) {
+        WebSocketClient wsClient = clients.get(client);
+        if (wsClient != null) {
+            sendFrame(wsClient, frame);
+        }
+    }
+
+    /**
+     * Ставит готовый кадр в очередь клиента; буфер может быть общим для нескольких
+     * клиентов, поэтому каждому достаётся свой duplicate() со своей позицией
+     */
+    private static boolean sendFrame(WebSocketClient wsClient, ByteBuffer frame) {
+        return wsClient.getOutbound().enqueue(frame.duplicate());
+    }
+
+    /**
+     * Кодирует кадр (FIN + opcode, RSV1 для сжатого сообщения) целиком в один буфер только для чтения.
+     * Для рассылки кадр берётся из slab: direct-буфер NIO пишет в сокет без
+     * промежуточного копирования, которое иначе делалось бы для каждого получателя.
+     * slab == null или крупный кадр - буфер в куче
+     */
+    private static ByteBuffer encodeFrame(int opcode, byte[] payload, FrameSlab slab, boolean compressed) {
+        int headerLength = payload.length <= 125 ? 2 : payload.length <= 65535 ? 4 : 10;
+        int size = headerLength + payload.length;
+        ByteBuffer buffer = slab != null ? slab.allocate(size) : null;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        buffer.put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
+        if (payload.length <= 125) {
             buffer.put((byte) payload.length);
-            buffer.put(payload);
-            buffer.flip();
-            client.write(buffer);
-        } catch (Exception e) {
-            e.printStackTrace();
+        } else if (payload.length <= 65535) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) payload.length);
+        } else {
+            buffer.put((byte) 127);
+            buffer.putLong(payload.length);
         }
+
+        buffer.put(payload);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private void sendPong(AsynchronousSocketChannel client, byte[] payload) {
+        sendFrame(client, encodeFrame(0xA, payload, null, false));
+    }
+
+    private void sendPing(AsynchronousSocketChannel client) {
+        sendFrame(client, PING_FRAME);
+    }
+
+    /**
+     * Отправляет кадр Close с кодом и закрывает подключение после его отправки
+     */
+    private void sendClose(AsynchronousSocketChannel client, int statusCode) {
+        WebSocketClient wsClient = clients.get(client);
+        if (wsClient == null) {
+            cleanupClient(client);
+            return;
+        }
+        byte[] payload = {(byte) (statusCode >> 8), (byte) statusCode};
+        wsClient.getOutbound().enqueueAndClose(encodeFrame(0x8, payload, null, false));
+    }
+
+    /**
+     * Делает чат текущим для клиента: сообщения чата будут рассылаться этому подключению
+     */
+    public void joinChat(AsynchronousSocketChannel client, WebSocketClient wsClient, String chatId) {
+        synchronized (wsClient) {
+            String previousChatId = wsClient.getCurrentChatId();
+            if (chatId.equals(previousChatId)) {
+                return;
+            }
+            if (previousChatId != null) {
+                unsubscribe(previousChatId, client);
+            }
+            wsClient.setCurrentChatId(chatId);
+            chatSubscribers.compute(chatId, (id, subscribers) -> {
+                if (subscribers == null) {
+                    subscribers = ConcurrentHashMap.newKeySet();
+                }
+                subscribers.add(client);
+                return subscribers;
+            });
+        }
+    }
+
+    private void unsubscribe(String chatId, AsynchronousSocketChannel client) {
+        chatSubscribers.computeIfPresent(chatId, (id, subscribers) -> {
+            subscribers.remove(client);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    /**
+     * Авторизует подключение и учитывает его в присутствии пользователя;
+     * повторная авторизация другим пользователем переносит подключение
+     */
+    public void authenticate(AsynchronousSocketChannel client, WebSocketClient wsClient, int userId, String username) {
+        synchronized (wsClient) {
+            wsClient.setAuthenticated(true);
+            wsClient.setUserId(String.valueOf(userId));
+            wsClient.setUsername(username);
+            if (wsClient.getPresenceUserId() == userId) {
+                return;
+            }
+            untrack(client, wsClient);
+            // Закрытое подключение (уже снятое cleanupClient) не учитывается
+            if (clients.get(client) == wsClient) {
+                track(client, wsClient, userId);
+            }
+        }
+    }
+
+    /**
+     * Отправляет текстовое сообщение во все подключения пользователя
+     */
+    public void sendToUser(int userId, String message) {
+        Set<AsynchronousSocketChannel> connections = userConnections.get(userId);
+        if (connections == null) {
+            return;
+        }
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        for (AsynchronousSocketChannel client : connections) {
+            WebSocketClient wsClient = clients.get(client);
+            if (wsClient != null) {
+                sendMessage(wsClient, 0x1, payload);
+            }
+        }
+    }
+
+    // Вызываются под synchronized (wsClient)
+    private void track(AsynchronousSocketChannel client, WebSocketClient wsClient, int userId) {
+        userConnections.compute(userId, (id, connections) -> {
+            if (connections == null) {
+                connections = ConcurrentHashMap.newKeySet();
+            }
+            connections.add(client);
+            return connections;
+        });
+        wsClient.setPresenceUserId(userId);
+        PresenceService.connected(userId);
+    }
+
+    private void untrack(AsynchronousSocketChannel client, WebSocketClient wsClient) {
+        int userId = wsClient.getPresenceUserId();
+        if (userId == 0) {
+            return;
+        }
+        userConnections.computeIfPresent(userId, (id, connections) -> {
+            connections.remove(client);
+            return connections.isEmpty() ? null : connections;
+        });
+        wsClient.setPresenceUserId(0);
+        PresenceService.disconnected(userId);
     }
 
     private void cleanupClient(AsynchronousSocketChannel client) {
         try {
-            clients.remove(client);
+            WebSocketClient wsClient = clients.remove(client);
+            if (wsClient != null) {
+                wsClient.getSession().close();
+                wsClient.getHeartbeat().cancel();
+                wsClient.getOutbound().close();
+                if (wsClient.getDeflate() != null) {
+                    wsClient.getDeflate().close();
+                }
+                synchronized (wsClient) {
+                    if (wsClient.getCurrentChatId() != null) {
+                        unsubscribe(wsClient.getCurrentChatId(), client);
+                    }
+                    untrack(client, wsClient);
+                }
+            }
             client.close();
             System.out.println("WebSocket client disconnected");
         } catch (IOException e) {
@@ -413,38 +706,117 @@ public class WebSocketServer {
         }
     }
 
+    /**
+     * Снимок метрик WebSocket-сервера: подключения и очереди обработки сообщений
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("connections", clients.size());
+        metrics.put("active_chats", chatSubscribers.size());
+        metrics.put("connected_users", userConnections.size());
+        metrics.put("dispatch", sessionExecutor.getMetrics());
+        metrics.put("heartbeat", heartbeat.getMetrics());
+        metrics.put("broadcast_slab", broadcastSlab.getMetrics());
+        return metrics;
+    }
+
     public void broadcastToChat(String chatId, String message) {
-        int sentCount = 0;
-        List<AsynchronousSocketChannel> clientsToProcess = new ArrayList<>(clients.keySet());
+        broadcastEvent(chatId, () -> message, null, null);
+    }
 
-        for (AsynchronousSocketChannel client : clientsToProcess) {
+    /**
+     * Рассылает событие подписчикам чата: клиентам chat.binary.v1 - двоичный кадр,
+     * остальным - текстовый. Каждое представление строится и кодируется в кадр
+     * не больше одного раза и только если нужно хотя бы одному получателю.
+     * binary может быть null - тогда все получают текст; exclude - кому не отправлять
+     */
+    public void broadcastEvent(String chatId, Supplier<String> text, Supplier<byte[]> binary,
+                               AsynchronousSocketChannel exclude) {
+        Set<AsynchronousSocketChannel> subscribers = chatSubscribers.get(chatId);
+        if (subscribers == null) {
+            return;
+        }
+
+        FrameSlab slab = subscribers.size() > 1 ? broadcastSlab : null;
+        SharedFrame textFrame = new SharedFrame(0x1, () -> text.get().getBytes(StandardCharsets.UTF_8), slab);
+        SharedFrame binaryFrame = binary != null ? new SharedFrame(0x2, binary, slab) : null;
+        for (AsynchronousSocketChannel client : subscribers) {
             WebSocketClient wsClient = clients.get(client);
 
-            if (wsClient != null &&
-                    wsClient.isAuthenticated() &&
-                    chatId.equals(wsClient.getCurrentChatId()) &&
-                    client.isOpen()) {
+            if (wsClient == null || !client.isOpen()) {
+                // Подключение закрылось, не пройдя через cleanupClient
+                unsubscribe(chatId, client);
+                continue;
+            }
+            if (!wsClient.isAuthenticated() || client == exclude) {
+                continue;
+            }
+
+            SharedFrame frame = wsClient.isBinaryProtocol() && binaryFrame != null ? binaryFrame : textFrame;
+            frame.send(wsClient);
+        }
+    }
 
-                try {
-                    sendWebSocketMessage(client, message);
-                    sentCount++;
-                } catch (Exception e) {
-                    System.err.println("Failed to send message to client: " + e.getMessage());
-                    cleanupClient(client);
+    /**
+     * Кадр рассылки, общий для получателей: несжатый вариант и сжатый без контекста
+     * кодируются один раз, с context takeover сжатие своё у каждого клиента
+     */
+    private static class SharedFrame {
+        private final int opcode;
+        private final Supplier<byte[]> source;
+        private final FrameSlab slab;
+        private byte[] payload;
+        private ByteBuffer plain;
+        private ByteBuffer compressed;
+
+        SharedFrame(int opcode, Supplier<byte[]> source, FrameSlab slab) {
+            this.opcode = opcode;
+            this.source = source;
+            this.slab = slab;
+        }
+
+        boolean send(WebSocketClient wsClient) {
+            if (payload == null) {
+                payload = source.get();
+            }
+            PerMessageDeflate deflate = wsClient.getDeflate();
+            if (deflate == null || !deflate.shouldCompress(payload.length)) {
+                if (plain == null) {
+                    plain = encodeFrame(opcode, payload, slab, false);
                 }
+                return sendFrame(wsClient, plain);
             }
+            if (deflate.isServerNoContextTakeover()) {
+                if (compressed == null) {
+                    compressed = encodeFrame(opcode, PerMessageDeflate.compressWithoutContext(payload), slab, true);
+                }
+                return sendFrame(wsClient, compressed);
+            }
+            return sendMessage(wsClient, opcode, payload);
         }
-        System.out.println("Broadcasted to " + sentCount + " clients in chat: " + chatId);
     }
 
     public interface MessageProcessor {
         String processMessage(AsynchronousSocketChannel client, String message, WebSocketClient wsClient);
+
+        /**
+         * Событие chat.binary.v1; возвращает двоичный ответ или null
+         */
+        byte[] processBinary(AsynchronousSocketChannel client, byte[] message, WebSocketClient wsClient);
     }
 
     public static class WebSocketClient {
         private boolean authenticated = false;
         private String userId;
+        private String username;
         private String currentChatId;
+        private OutboundQueue outbound;
+        private PerMessageDeflate deflate;
+        private boolean binaryProtocol;
+        private SessionExecutor.Session session;
+        private HeartbeatWheel.Handle heartbeat;
+        // Пользователь, в присутствии которого учтено подключение; 0 - не учтено
+        private int presenceUserId;
 
         public boolean isAuthenticated() { return authenticated; }
         public void setAuthenticated(boolean authenticated) { this.authenticated = authenticated; }
@@ -453,7 +825,30 @@ public class WebSocketServer {
         public String getCurrentChatId() { return currentChatId; }
         public void setCurrentChatId(String currentChatId) { this.currentChatId = currentChatId; }
 
-        public void setUsername(String username) {
-        }
+        public String getUsername() { return username; }
+        public void setUsername(String username) { this.username = username; }
+
+        public OutboundQueue getOutbound() { return outbound; }
+        void setOutbound(OutboundQueue outbound) { this.outbound = outbound; }
+
+        public PerMessageDeflate getDeflate() { return deflate; }
+        void setDeflate(PerMessageDeflate deflate) { this.deflate = deflate; }
+
+        public boolean isBinaryProtocol() { return binaryProtocol; }
+        void setBinaryProtocol(boolean binaryProtocol) { this.binaryProtocol = binaryProtocol; }
+
+        public SessionExecutor.Session getSession() { return session; }
+        void setSession(SessionExecutor.Session session) { this.session = session; }
+
+        public HeartbeatWheel.Handle getHeartbeat() { return heartbeat; }
+        void setHeartbeat(HeartbeatWheel.Handle heartbeat) { this.heartbeat = heartbeat; }
+
+        int getPresenceUserId() { return presenceUserId; }
+        void setPresenceUserId(int presenceUserId) { this.presenceUserId = presenceUserId; }
+
+        /**
+         * Время последних входящих данных от клиента (мс)
+         */
+        public long getLastActivity() { return heartbeat != null ? heartbeat.getLastActivity() : 0; }
     }
 }
\ No newline at end of file
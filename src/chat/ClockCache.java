@@ -0,0 +1,88 @@
+package chat;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Потокобезопасный кэш ограниченного размера без общей блокировки на чтение.
+ * Записи лежат в ConcurrentHashMap; чтение лишь отмечает запись как
+ * использованную. Вытеснение - приближённый LRU по алгоритму "часы": при
+ * превышении размера стрелка обходит записи, снимая отметку, и удаляет первую
+ * неотмеченную. Блокировка берётся только на время вытеснения.
+ */
+class ClockCache<K, V> {
+    private final int maxSize;
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    // Стрелка часов; защищена this
+    private Iterator<Map.Entry<K, Entry<V>>> hand;
+
+    private static final class Entry<V> {
+        final V value;
+        volatile boolean referenced;
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+
+    ClockCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        // Запись в общую строку кэша процессора - только если отметки ещё нет
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Кладёт значение; false - пока оно клалось, valid перестал выполняться
+     * (например, была инвалидация), и значение убрано обратно
+     */
+    boolean put(K key, V value, BooleanSupplier valid) {
+        Entry<V> entry = new Entry<>(value);
+        entries.put(key, entry);
+        if (!valid.getAsBoolean()) {
+            entries.remove(key, entry);
+            return false;
+        }
+        if (entries.size() > maxSize) {
+            evict();
+        }
+        return true;
+    }
+
+    void remove(K key) {
+        entries.remove(key);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private synchronized void evict() {
+        while (entries.size() > maxSize) {
+            if (hand == null || !hand.hasNext()) {
+                hand = entries.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            Map.Entry<K, Entry<V>> candidate = hand.next();
+            Entry<V> entry = candidate.getValue();
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else {
+                entries.remove(candidate.getKey(), entry);
+            }
+        }
+    }
+}
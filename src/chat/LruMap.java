@@ -0,0 +1,24 @@
+package chat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LinkedHashMap в порядке доступа, вытесняющий самую давно использованную
+ * запись при превышении размера. Не потокобезопасен - кэши синхронизируются сами
+ */
+class LruMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    LruMap(int maxSize) {
+        super(16, 0.75f, true);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxSize;
+    }
+}
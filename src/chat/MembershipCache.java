@@ -0,0 +1,121 @@
+package chat;
+
+import config.Config;
+import db.Database;
+import db.Sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш участников чатов для проверки доступа.
+ * Для чата хранится отсортированный int[] id участников (поиск - бинарный),
+ * для пользователя - отсортированный int[] его чатов. Состав загружается
+ * целиком одним запросом при первом обращении, поэтому отрицательный ответ
+ * ("не участник") тоже берётся из кэша. Оба отображения ограничены по размеру
+ * и читаются без общей блокировки (ClockCache, приближённый LRU).
+ * При изменении состава чата нужно вызвать invalidateChat()/invalidateUser().
+ */
+public class MembershipCache {
+    private static final int MAX_CHATS = Config.getInt("cache.membership.maxChats", 10000);
+    private static final int MAX_USERS = Config.getInt("cache.membership.maxUsers", 10000);
+
+    private static final ClockCache<Integer, int[]> chatMembers = new ClockCache<>(MAX_CHATS);
+    private static final ClockCache<Integer, int[]> userChats = new ClockCache<>(MAX_USERS);
+    // Увеличивается при каждой инвалидации: загрузка, начатая до неё, в кэш не попадает
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    public static boolean isMember(Connection conn, int chatId, int userId) throws SQLException {
+        return Arrays.binarySearch(getMembers(conn, chatId), userId) >= 0;
+    }
+
+    /**
+     * То же, но соединение берётся из пула только при промахе
+     */
+    public static boolean isMember(int chatId, int userId) throws SQLException {
+        int[] members = chatMembers.get(chatId);
+        if (members != null) {
+            hits.incrementAndGet();
+            return Arrays.binarySearch(members, userId) >= 0;
+        }
+        try (Connection conn = Database.getConnection()) {
+            return isMember(conn, chatId, userId);
+        }
+    }
+
+    /**
+     * Отсортированные id участников чата; массив не изменять
+     */
+    public static int[] getMembers(Connection conn, int chatId) throws SQLException {
+        return get(chatMembers, conn, Sql.SELECT_CHAT_MEMBERS, chatId);
+    }
+
+    /**
+     * Отсортированные id чатов пользователя; массив не изменять
+     */
+    public static int[] getChats(Connection conn, int userId) throws SQLException {
+        return get(userChats, conn, Sql.SELECT_USER_CHATS, userId);
+    }
+
+    public static void invalidateChat(int chatId) {
+        generation.incrementAndGet();
+        chatMembers.remove(chatId);
+    }
+
+    public static void invalidateUser(int userId) {
+        generation.incrementAndGet();
+        userChats.remove(userId);
+    }
+
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("chats", chatMembers.size());
+        metrics.put("users", userChats.size());
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        return metrics;
+    }
+
+    private static int[] get(ClockCache<Integer, int[]> cache, Connection conn, String sql, int id) throws SQLException {
+        int[] ids = cache.get(id);
+        if (ids != null) {
+            hits.incrementAndGet();
+            return ids;
+        }
+
+        misses.incrementAndGet();
+        long loadGeneration = generation.get();
+        ids = load(conn, sql, id);
+        // Проверка после вставки: инвалидация, прошедшая между загрузкой и put, убирает запись
+        cache.put(id, ids, () -> generation.get() == loadGeneration);
+        return ids;
+    }
+
+    private static int[] load(Connection conn, String sql, int id) throws SQLException {
+        int[] ids = new int[8];
+        int count = 0;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = rs.getInt(1);
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+}
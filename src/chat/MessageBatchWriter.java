@@ -0,0 +1,452 @@
+package chat;
+
+import db.Database;
+import db.Sql;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Отложенная запись сообщений (write-behind).
+ * Сообщение получает id из запаса значений messages_message_id_seq, который
+ * заранее пополняет MessageIdAllocator, и сразу возвращается для рассылки,
+ * а в БД попадает пачкой: писатель ждёт до flushIntervalMs или batchSize
+ * сообщений и вставляет их JDBC-батчем в одной транзакции.
+ * Очередь ограничена - при её заполнении отправитель ждёт до offerTimeoutMs,
+ * затем получает отказ. После commit пачки вызывается onCommitted.
+ * Строки, нарушающие ограничения БД (например, чат уже удалён), при повторе
+ * пропускаются по одной, чтобы не блокировать остальные.
+ * С журналом (MessageWal) писатель переходит в режим отставания, если БД
+ * не принимает пачку после MAX_RETRIES попыток (и при старте, если в журнале
+ * остались записи): сообщения из очереди отпускаются сразу после записи в
+ * журнал, а в БД дописываются из файлов журнала по порядку. Так недоступная
+ * БД не заполняет очередь и не приводит к отказам отправителям.
+ */
+public class MessageBatchWriter {
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_DELAY_MS = 200;
+    private static final long MAX_RETRY_DELAY_MS = 5000;
+
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final long offerTimeoutMs;
+    private final MessageIdAllocator ids;
+    // Вызывается после commit пачки
+    private final Consumer<List<MessageStore.StoredMessage>> onCommitted;
+    // Локальный журнал (null - без него): сообщения подтверждаются после записи в него,
+    // писатель дожидается этой записи и пропускает неудавшиеся
+    private final MessageWal wal;
+    private final BlockingQueue<MessageStore.StoredMessage> queue;
+    private final Thread writer;
+    private volatile boolean running = true;
+    // БД отстаёт - сообщения дописываются из журнала
+    private volatile boolean backlogged;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+
+    public MessageBatchWriter(int queueCapacity, int batchSize, long flushIntervalMs,
+                              long offerTimeoutMs, int idBlockSize,
+                              Consumer<List<MessageStore.StoredMessage>> onCommitted, MessageWal wal) {
+        this(queueCapacity, batchSize, flushIntervalMs, offerTimeoutMs, idBlockSize, onCommitted, wal,
+                MessageBatchWriter::allocateIds);
+    }
+
+    MessageBatchWriter(int queueCapacity, int batchSize, long flushIntervalMs,
+                       long offerTimeoutMs, int idBlockSize,
+                       Consumer<List<MessageStore.StoredMessage>> onCommitted, MessageWal wal,
+                       MessageIdAllocator.Source idSource) {
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.ids = new MessageIdAllocator(idBlockSize, offerTimeoutMs, idSource);
+        this.onCommitted = onCommitted;
+        this.wal = wal;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        this.writer = new Thread(this::run, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Выдаёт сообщению id и время, ставит его в очередь и, если есть журнал,
+     * пишет в него. БД при этом не используется. StoreBusyException - очередь
+     * переполнена или запас id исчерпан
+     */
+    public MessageStore.StoredMessage submit(int chatId, int senderId, String text) throws SQLException {
+        MessageStore.StoredMessage message = new MessageStore.StoredMessage(ids.next(), chatId, senderId, text,
+                new Timestamp(System.currentTimeMillis()));
+        try {
+            if (!enqueue(message)) {
+                throw new MessageStore.StoreBusyException("Message queue is full, try again later");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessageStore.StoreBusyException("Interrupted while queueing message");
+        }
+
+        // Писатель не вставит сообщение, пока persisted() не завершится
+        if (wal != null) {
+            try {
+                wal.append(message).whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        message.persisted().complete(message);
+                    } else {
+                        message.persisted().completeExceptionally(error);
+                    }
+                });
+            } catch (IOException e) {
+                message.persisted().completeExceptionally(e);
+                throw new SQLException("Failed to write message to WAL: " + e.getMessage(), e);
+            }
+        }
+        return message;
+    }
+
+    private boolean enqueue(MessageStore.StoredMessage message) throws InterruptedException {
+        if (!running) {
+            return false;
+        }
+        if (queue.offer(message, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    public boolean isBacklogged() {
+        return backlogged;
+    }
+
+    /**
+     * Зарезервированные, но ещё не выданные id - сколько сообщений примется без БД
+     */
+    public int getReservedIds() {
+        return ids.getAvailable();
+    }
+
+    /**
+     * Останавливает писателя, дописав всё, что уже в очереди. Вызывается из
+     * MessageStore.shutdown(), когда новых сообщений больше не будет
+     */
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        ids.close();
+        writer.interrupt();
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        // Записи, оставшиеся в журнале с прошлого запуска, дописываются из файлов
+        if (wal != null && wal.getPendingCount() > 0) {
+            replayBacklog();
+        }
+
+        List<MessageStore.StoredMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                MessageStore.StoredMessage first = running
+                        ? queue.poll(1, TimeUnit.SECONDS)
+                        : queue.poll();
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Добираем пачку: до batchSize сообщений или до истечения flushIntervalMs
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    MessageStore.StoredMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutdown(): дописываем то, что уже набрано и осталось в очереди
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+
+            if (wal != null) {
+                awaitDurable(batch);
+                // Сообщение могло попасть в БД при дозаписи из журнала
+                batch.removeIf(message -> !wal.isPending(message.getMessageId()));
+            }
+            if (!batch.isEmpty()) {
+                boolean written = flush(batch);
+                batch.clear();
+                if (!written) {
+                    replayBacklog();
+                }
+            }
+        }
+    }
+
+    /**
+     * Дожидается записи сообщений в журнал и убирает те, что записать не удалось -
+     * отправитель уже получил ошибку
+     */
+    private static void awaitDurable(List<MessageStore.StoredMessage> batch) {
+        batch.removeIf(message -> {
+            try {
+                message.persisted().join();
+                return false;
+            } catch (CompletionException | CancellationException e) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Освобождает очередь, пока не пройдёт waitMs: сообщения уже в журнале
+     * (или отправитель получил ошибку), в БД их допишет replayBacklog().
+     * Каждое дожидается сброса журнала на диск - следующее чтение журнала его увидит
+     */
+    private void releaseQueued(long waitMs) {
+        List<MessageStore.StoredMessage> released = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        while (true) {
+            queue.drainTo(released);
+            awaitDurable(released);
+            released.clear();
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                MessageStore.StoredMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next != null) {
+                    released.add(next);
+                }
+            } catch (InterruptedException e) {
+                // shutdown()
+                return;
+            }
+        }
+    }
+
+    /**
+     * Дописывает в БД записи журнала пачками по batchSize, освобождая очередь между
+     * попытками. Возвращается, когда журнал дописан или писатель остановлен - тогда
+     * записи останутся в журнале до следующего запуска
+     */
+    private void replayBacklog() {
+        backlogged = true;
+        System.out.println("Message writer: database is behind, replaying " + wal.getPendingCount() + " messages from WAL");
+        wal.resetReplay();
+        List<MessageStore.StoredMessage> batch = new ArrayList<>();
+        long delay = RETRY_DELAY_MS;
+        try {
+            while (running) {
+                releaseQueued(0);
+                try {
+                    if (batch.isEmpty()) {
+                        batch = wal.readPending(batchSize);
+                        if (batch.isEmpty()) {
+                            System.out.println("Message writer: WAL replay completed");
+                            return;
+                        }
+                    }
+                    write(batch);
+                    replayed.addAndGet(batch.size());
+                    batch.clear();
+                    delay = RETRY_DELAY_MS;
+                    continue;
+                } catch (SQLException | IOException e) {
+                    System.err.println("Failed to replay messages from WAL: " + e.getMessage());
+                }
+                // БД недоступна: ждём, продолжая отпускать очередь
+                releaseQueued(delay);
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+            }
+            releaseQueued(0);
+        } finally {
+            backlogged = false;
+        }
+    }
+
+    /**
+     * Вставляет пачку; строки, нарушающие ограничения, пропускаются по одной
+     */
+    private void write(List<MessageStore.StoredMessage> batch) throws SQLException {
+        try {
+            insert(batch);
+            committed(batch);
+        } catch (SQLException e) {
+            if (!isIntegrityViolation(e)) {
+                throw e;
+            }
+            insertIndividually(batch);
+        }
+    }
+
+    /**
+     * false - пачка не записана, но лежит в журнале: её нужно дописать из журнала
+     */
+    private boolean flush(List<MessageStore.StoredMessage> batch) {
+        SQLException lastError;
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            try {
+                write(batch);
+                return true;
+            } catch (SQLException e) {
+                lastError = e;
+                System.err.println("Failed to write message batch (attempt " + attempt + "): " + lastError.getMessage());
+            }
+
+            if (attempt >= MAX_RETRIES) {
+                break;
+            }
+            try {
+                Thread.sleep(Math.min(RETRY_DELAY_MS * attempt, MAX_RETRY_DELAY_MS));
+            } catch (InterruptedException interrupted) {
+                // shutdown(): делаем оставшиеся попытки без ожидания
+            }
+        }
+
+        if (wal != null) {
+            // Сообщения уже в журнале - не теряем их, а дописываем из журнала
+            return false;
+        }
+        failed.addAndGet(batch.size());
+        for (MessageStore.StoredMessage message : batch) {
+            message.persisted().completeExceptionally(lastError);
+        }
+        return true;
+    }
+
+    private void committed(List<MessageStore.StoredMessage> batch) {
+        batches.incrementAndGet();
+        written.addAndGet(batch.size());
+        onCommitted.accept(batch);
+    }
+
+    /**
+     * Пишет пачку по одной строке, пропуская строки, которые БД отвергает по ограничениям
+     */
+    private void insertIndividually(List<MessageStore.StoredMessage> batch) throws SQLException {
+        try (Connection conn = Database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.INSERT_MESSAGE_WITH_ID)) {
+            for (MessageStore.StoredMessage message : batch) {
+                bind(stmt, message);
+                try {
+                    stmt.executeUpdate();
+                } catch (SQLException e) {
+                    if (!isIntegrityViolation(e)) {
+                        throw e;
+                    }
+                    System.err.println("Dropping message " + message.getMessageId() + ": " + e.getMessage());
+                    failed.incrementAndGet();
+                    message.persisted().completeExceptionally(e);
+                }
+            }
+        }
+        // Отвергнутые тоже считаются обработанными - повтор их не спасёт
+        committed(batch);
+    }
+
+    private static boolean isIntegrityViolation(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("23");
+    }
+
+    private static void bind(PreparedStatement stmt, MessageStore.StoredMessage message) throws SQLException {
+        stmt.setInt(1, message.getMessageId());
+        stmt.setInt(2, message.getChatId());
+        stmt.setInt(3, message.getSenderId());
+        stmt.setString(4, message.getText());
+        stmt.setTimestamp(5, message.getSentAt());
+    }
+
+    private void insert(List<MessageStore.StoredMessage> batch) throws SQLException {
+        try (Connection conn = Database.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(Sql.INSERT_MESSAGE_WITH_ID)) {
+                for (MessageStore.StoredMessage message : batch) {
+                    bind(stmt, message);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static int[] allocateIds(int count) throws SQLException {
+        int[] ids = new int[count];
+        try (Connection conn = Database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.ALLOCATE_MESSAGE_IDS)) {
+            stmt.setInt(1, count);
+            try (ResultSet rs = stmt.executeQuery()) {
+                int i = 0;
+                while (rs.next() && i < count) {
+                    ids[i++] = rs.getInt(1);
+                }
+                if (i < count) {
+                    throw new SQLException("Sequence returned " + i + " ids instead of " + count);
+                }
+            }
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+}
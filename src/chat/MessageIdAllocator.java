@@ -0,0 +1,162 @@
+package chat;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Запас id для сообщений, записываемых пачками.
+ * Значения messages_message_id_seq резервируются блоками по blockSize
+ * фоновым потоком: новый блок запрашивается, как только в запасе остаётся
+ * меньше blockSize id, так что отправитель берёт id из памяти и БД не ждёт.
+ * Пока БД недоступна, расходуется запас (от blockSize до 2 * blockSize id),
+ * а поток повторяет запрос с нарастающей паузой. Id берутся из той же
+ * последовательности, что и у вставок без write-behind, поэтому с ними не
+ * пересекаются; неизрасходованный при остановке запас пропадает (пропуски в id).
+ */
+class MessageIdAllocator {
+    private static final long RETRY_DELAY_MS = 200;
+    private static final long MAX_RETRY_DELAY_MS = 5000;
+
+    /**
+     * Резервирует count значений последовательности
+     */
+    interface Source {
+        int[] allocate(int count) throws SQLException;
+    }
+
+    private final int blockSize;
+    private final long waitMs;
+    private final Source source;
+    private final ExecutorService refiller;
+
+    // Защищено this
+    private final ArrayDeque<int[]> blocks = new ArrayDeque<>();
+    private int[] current = new int[0];
+    private int position;
+    private int available;
+    private boolean refilling;
+    private boolean closed;
+
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * waitMs - сколько отправитель ждёт первого блока (или нового, если запас кончился)
+     */
+    MessageIdAllocator(int blockSize, long waitMs, Source source) {
+        this.blockSize = blockSize;
+        this.waitMs = waitMs;
+        this.source = source;
+        this.refiller = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "message-id-allocator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronized (this) {
+            requestRefill();
+        }
+    }
+
+    /**
+     * Следующий id; StoreBusyException - запас исчерпан и за waitMs не пополнен
+     */
+    synchronized int next() throws SQLException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        while (position == current.length && blocks.isEmpty()) {
+            if (closed) {
+                throw new MessageStore.StoreBusyException("Message writer is stopped");
+            }
+            requestRefill();
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new MessageStore.StoreBusyException("No message ids reserved, database is unavailable");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessageStore.StoreBusyException("Interrupted while waiting for message ids");
+            }
+        }
+        if (position == current.length) {
+            current = blocks.poll();
+            position = 0;
+        }
+        available--;
+        if (available < blockSize) {
+            requestRefill();
+        }
+        return current[position++];
+    }
+
+    synchronized int getAvailable() {
+        return available;
+    }
+
+    long getReserved() {
+        return reserved.get();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        refiller.shutdownNow();
+    }
+
+    // Под монитором this
+    private void requestRefill() {
+        if (!refilling && !closed) {
+            refilling = true;
+            refiller.execute(this::refill);
+        }
+    }
+
+    /**
+     * Пополняет запас до blockSize id и больше; запрос к БД - без монитора
+     */
+    private void refill() {
+        long delay = RETRY_DELAY_MS;
+        while (true) {
+            synchronized (this) {
+                if (closed || available >= blockSize) {
+                    refilling = false;
+                    return;
+                }
+            }
+            try {
+                int[] ids = source.allocate(blockSize);
+                synchronized (this) {
+                    blocks.add(ids);
+                    available += ids.length;
+                    notifyAll();
+                }
+                reserved.addAndGet(ids.length);
+                delay = RETRY_DELAY_MS;
+                continue;
+            } catch (SQLException e) {
+                failures.incrementAndGet();
+                System.err.println("Failed to reserve message ids, will retry: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // close()
+                synchronized (this) {
+                    refilling = false;
+                }
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+        }
+    }
+}
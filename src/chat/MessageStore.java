@@ -0,0 +1,215 @@
+package chat;
+
+import config.Config;
+import db.Database;
+import db.Sql;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Сохранение сообщений чата - общее для WebSocket и /api/send-message.
+ * По умолчанию проверка членства, вставка и получение message_id/sent_at
+ * выполняются одним запросом (INSERT ... SELECT ... WHERE EXISTS ... RETURNING).
+ * При messages.writeBehind=true сообщение получает id и время на сервере,
+ * сразу возвращается для рассылки, а в БД записывается пачкой через
+ * MessageBatchWriter; подтверждать отправку клиенту нужно по persisted().
+ * Если дополнительно messages.wal.enabled=true, сообщение сначала пишется
+ * в локальный журнал MessageWal и persisted() завершается, как только запись
+ * сброшена на диск; в БД его доносит писатель. Пока БД недоступна (и после
+ * перезапуска) писатель дописывает сообщения прямо из журнала, а очередь
+ * освобождается сразу после записи в журнал - отправители не получают отказов
+ * из-за недоступной БД.
+ */
+public class MessageStore {
+    private static final boolean WRITE_BEHIND = Config.getBoolean("messages.writeBehind");
+    private static final boolean WAL_ENABLED = WRITE_BEHIND && Config.getBoolean("messages.wal.enabled");
+    private static volatile MessageBatchWriter batchWriter;
+    private static volatile MessageWal wal;
+
+    public static class StoredMessage {
+        private final int messageId;
+        private final int chatId;
+        private final int senderId;
+        private final String text;
+        private final Timestamp sentAt;
+        private final CompletableFuture<StoredMessage> persisted;
+
+        public StoredMessage(int messageId, int chatId, int senderId, String text, Timestamp sentAt) {
+            this.messageId = messageId;
+            this.chatId = chatId;
+            this.senderId = senderId;
+            this.text = text;
+            this.sentAt = sentAt;
+            this.persisted = new CompletableFuture<>();
+        }
+
+        public int getMessageId() { return messageId; }
+        public int getChatId() { return chatId; }
+        public int getSenderId() { return senderId; }
+        public String getText() { return text; }
+        public Timestamp getSentAt() { return sentAt; }
+
+        /**
+         * Завершается, когда сообщение зафиксировано в БД или, при включённом журнале,
+         * на локальном диске (или с ошибкой, если записать не удалось)
+         */
+        public CompletableFuture<StoredMessage> persisted() { return persisted; }
+    }
+
+    public static class StoreBusyException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        public StoreBusyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Запускает писателя и, если включён журнал, дописывает в БД сообщения,
+     * оставшиеся в нём с прошлого запуска
+     */
+    public static void init() throws SQLException {
+        if (WRITE_BEHIND) {
+            getBatchWriter();
+        }
+    }
+
+    /**
+     * Сохраняет сообщение; возвращает null, если отправитель не участник чата.
+     * В режиме write-behind сообщение ещё может быть не записано - см. persisted()
+     */
+    public static StoredMessage send(int chatId, int senderId, String text) throws SQLException {
+        if (WRITE_BEHIND) {
+            return enqueue(chatId, senderId, text);
+        }
+        try (Connection conn = Database.getConnection()) {
+            return save(conn, chatId, senderId, text);
+        }
+    }
+
+    /**
+     * Синхронная запись на уже полученном соединении
+     */
+    public static StoredMessage save(Connection conn, int chatId, int senderId, String text) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.INSERT_MESSAGE_IF_MEMBER)) {
+            stmt.setInt(1, chatId);
+            stmt.setInt(2, senderId);
+            stmt.setString(3, text);
+            stmt.setInt(4, chatId);
+            stmt.setInt(5, senderId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    // В кэше членства могла остаться устаревшая запись
+                    MembershipCache.invalidateChat(chatId);
+                    return null;
+                }
+                StoredMessage message = new StoredMessage(rs.getInt("message_id"), chatId, senderId, text,
+                        rs.getTimestamp("sent_at"));
+                message.persisted.complete(message);
+                return message;
+            }
+        }
+    }
+
+    /**
+     * Дописывает в БД очередь писателя и закрывает журнал. Вызывается из общего
+     * обработчика завершения после остановки WebSocket-сервера, чтобы сообщения,
+     * принятые при разборе очередей подключений, не были потеряны
+     */
+    public static void shutdown() {
+        MessageBatchWriter writer = batchWriter;
+        MessageWal log = wal;
+        // Писатель ждёт сброса записей журнала на диск - журнал закрывается после него
+        if (writer != null) {
+            writer.shutdown();
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("write_behind", WRITE_BEHIND);
+        MessageBatchWriter writer = batchWriter;
+        if (writer != null) {
+            metrics.put("queue_size", writer.getQueueSize());
+            metrics.put("batches", writer.getBatches());
+            metrics.put("written", writer.getWritten());
+            metrics.put("rejected", writer.getRejected());
+            metrics.put("failed", writer.getFailed());
+            metrics.put("backlogged", writer.isBacklogged());
+            metrics.put("replayed", writer.getReplayed());
+            metrics.put("reserved_ids", writer.getReservedIds());
+        }
+        MessageWal log = wal;
+        if (log != null) {
+            metrics.put("wal_pending", log.getPendingCount());
+            metrics.put("wal_appended", log.getAppended());
+            metrics.put("wal_syncs", log.getSyncs());
+            metrics.put("wal_recovered", log.getRecovered());
+        }
+        return metrics;
+    }
+
+    private static StoredMessage enqueue(int chatId, int senderId, String text) throws SQLException {
+        // Членство проверяется по кэшу: вставка пачкой не может отклонить отдельное сообщение
+        if (!MembershipCache.isMember(chatId, senderId)) {
+            return null;
+        }
+
+        return getBatchWriter().submit(chatId, senderId, text);
+    }
+
+    private static MessageBatchWriter getBatchWriter() throws SQLException {
+        MessageBatchWriter writer = batchWriter;
+        if (writer == null) {
+            synchronized (MessageStore.class) {
+                writer = batchWriter;
+                if (writer == null) {
+                    MessageWal log = null;
+                    if (WAL_ENABLED) {
+                        log = new MessageWal(Paths.get(Config.get("messages.wal.dir", "data/wal")),
+                                Config.getInt("messages.wal.segmentSize", 64 * 1024 * 1024),
+                                Config.getInt("messages.wal.syncIntervalMs", 2));
+                        try {
+                            log.recover();
+                        } catch (IOException e) {
+                            throw new SQLException("Failed to open message WAL: " + e.getMessage(), e);
+                        }
+                    }
+
+                    MessageWal committedLog = log;
+                    writer = new MessageBatchWriter(
+                            Config.getInt("messages.queueCapacity", 10000),
+                            Config.getInt("messages.batchSize", 500),
+                            Config.getInt("messages.flushIntervalMs", 20),
+                            Config.getInt("messages.offerTimeoutMs", 1000),
+                            Config.getInt("messages.idBlockSize", 5000),
+                            batch -> {
+                                for (StoredMessage message : batch) {
+                                    if (committedLog != null) {
+                                        committedLog.checkpoint(message.getMessageId());
+                                    } else {
+                                        message.persisted.complete(message);
+                                    }
+                                }
+                            },
+                            log);
+                    wal = log;
+                    batchWriter = writer;
+                }
+            }
+        }
+        return writer;
+    }
+}
@@ -0,0 +1,465 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Локальный журнал сообщений (write-ahead log).
+ * Записи добавляются в отображённый в память файл-сегмент фиксированного
+ * размера; при заполнении открывается следующий сегмент (wal-NNNNNNNNNN.log).
+ * Сброс на диск (force) выполняется отдельным потоком пачками: все записи,
+ * накопленные за syncIntervalMs, подтверждаются одним force().
+ * Запись: [длина данных int][CRC32 данных int][message_id int][chat_id int]
+ * [sender_id int][sent_at long][текст UTF-8]. Нулевая длина - конец сегмента,
+ * неверная CRC - недописанная при сбое запись.
+ * После commit в БД сообщение отмечается через checkpoint(); сегмент, все
+ * записи которого в БД, удаляется. При старте recover() находит записи
+ * оставшихся сегментов, не попавшие в БД; их, как и записи, которые писатель
+ * не смог записать, пока БД была недоступна, возвращает readPending().
+ */
+public class MessageWal {
+    private static final int HEADER_SIZE = 8;
+    private static final int FIXED_PAYLOAD_SIZE = 20;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long syncIntervalMs;
+
+    // Защищает активный сегмент и список ожидающих force()
+    private final Object lock = new Object();
+    private Segment active;
+    private long nextSegmentNumber;
+    private List<CompletableFuture<Void>> waiting = new ArrayList<>();
+    private boolean running = true;
+    private final Thread syncer;
+
+    // Сегмент, в котором лежит ещё не записанное в БД сообщение
+    private final Map<Integer, Segment> pendingMessages = new ConcurrentHashMap<>();
+    // Неудалённые сегменты по номеру
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // Позиция дозаписи из журнала (только поток писателя)
+    private long replaySegment;
+    private long replayPosition;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+
+    private static class Segment {
+        final long number;
+        final Path path;
+        MappedByteBuffer buffer;
+        // Граница уже сброшенных на диск данных; меняется под монитором сегмента
+        int syncedPosition;
+        // Записи сегмента, ещё не записанные в БД
+        final AtomicInteger pending = new AtomicInteger();
+        volatile boolean sealed;
+
+        Segment(long number, Path path, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    public MessageWal(Path directory, int segmentSize, long syncIntervalMs) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncIntervalMs = syncIntervalMs;
+        this.syncer = new Thread(this::syncLoop, "message-wal-sync");
+        syncer.setDaemon(true);
+    }
+
+    /**
+     * Читает оставшиеся сегменты и открывает новый активный сегмент.
+     * Возвращает число записей, которые могли не попасть в БД - их отдаёт readPending()
+     */
+    public int recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        paths.sort(null);
+
+        int total = 0;
+        for (Path path : paths) {
+            long number = segmentNumber(path);
+            nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+
+            Segment segment = new Segment(number, path, null);
+            segment.sealed = true;
+            int count = readSegment(segment);
+            if (count == 0) {
+                deleteSegment(segment);
+            } else {
+                segments.put(number, segment);
+                System.out.println("WAL: recovered " + count + " messages from " + path.getFileName());
+                total += count;
+            }
+        }
+        recovered.addAndGet(total);
+
+        synchronized (lock) {
+            active = openSegment(nextSegmentNumber++);
+        }
+        syncer.start();
+        return total;
+    }
+
+    /**
+     * Дописывает сообщение в журнал. Future завершается, когда запись сброшена на диск
+     */
+    public CompletableFuture<Void> append(MessageStore.StoredMessage message) throws IOException {
+        byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+        int payloadSize = FIXED_PAYLOAD_SIZE + text.length;
+        int recordSize = HEADER_SIZE + payloadSize;
+        if (recordSize > segmentSize) {
+            throw new IOException("Message is too large for WAL segment: " + recordSize + " bytes");
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+        payload.putInt(message.getMessageId());
+        payload.putInt(message.getChatId());
+        payload.putInt(message.getSenderId());
+        payload.putLong(message.getSentAt().getTime());
+        payload.put(text);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        synchronized (lock) {
+            if (!running) {
+                throw new IOException("WAL is closed");
+            }
+            if (active.buffer.remaining() < recordSize) {
+                rotate();
+            }
+            active.buffer.putInt(payloadSize);
+            active.buffer.putInt((int) crc.getValue());
+            active.buffer.put(payload.array());
+            active.pending.incrementAndGet();
+            pendingMessages.put(message.getMessageId(), active);
+
+            waiting.add(durable);
+            if (waiting.size() == 1) {
+                lock.notifyAll();
+            }
+        }
+        appended.incrementAndGet();
+        return durable;
+    }
+
+    /**
+     * Отмечает сообщение записанным в БД; освобождает сегмент, когда в нём не осталось таких записей
+     */
+    public void checkpoint(int messageId) {
+        Segment segment = pendingMessages.remove(messageId);
+        if (segment != null && segment.pending.decrementAndGet() == 0 && segment.sealed) {
+            deleteSegment(segment);
+        }
+    }
+
+    public boolean isPending(int messageId) {
+        return pendingMessages.containsKey(messageId);
+    }
+
+    /**
+     * Начинает следующий readPending() с самого старого сегмента
+     */
+    public void resetReplay() {
+        replaySegment = 0;
+        replayPosition = 0;
+    }
+
+    /**
+     * Следующие (после предыдущего вызова) сброшенные на диск записи, ещё не
+     * отмеченные через checkpoint(), - не больше limit, в порядке записи.
+     * Пустой список - таких записей сейчас нет. Вызывается одним потоком
+     */
+    public List<MessageStore.StoredMessage> readPending(int limit) throws IOException {
+        List<MessageStore.StoredMessage> messages = new ArrayList<>();
+        for (Segment segment : segments.tailMap(replaySegment, true).values()) {
+            if (segment.number != replaySegment) {
+                replaySegment = segment.number;
+                replayPosition = 0;
+            }
+            // В активном сегменте читаются только данные, уже сброшенные на диск
+            long end;
+            if (segment.sealed) {
+                end = Long.MAX_VALUE;
+            } else {
+                synchronized (segment) {
+                    end = segment.syncedPosition;
+                }
+            }
+
+            try (RecordReader reader = new RecordReader(segment.path, replayPosition, end)) {
+                MessageStore.StoredMessage message;
+                while (messages.size() < limit && (message = reader.next()) != null) {
+                    if (pendingMessages.get(message.getMessageId()) == segment) {
+                        messages.add(message);
+                    }
+                }
+                replayPosition = reader.position;
+            } catch (NoSuchFileException e) {
+                // Сегмент удалён - все его записи уже в БД
+            }
+            if (messages.size() >= limit) {
+                break;
+            }
+        }
+        return messages;
+    }
+
+    public int getPendingCount() {
+        return pendingMessages.size();
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    public long getRecovered() {
+        return recovered.get();
+    }
+
+    /**
+     * Сбрасывает на диск всё записанное и останавливает поток синхронизации
+     */
+    public void close() {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            syncer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            Segment segment;
+            int position;
+            List<CompletableFuture<Void>> batch;
+            synchronized (lock) {
+                try {
+                    while (waiting.isEmpty() && running) {
+                        lock.wait();
+                    }
+                    // Даём накопиться записям, чтобы подтвердить их одним force()
+                    if (running && syncIntervalMs > 0) {
+                        lock.wait(syncIntervalMs);
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                if (waiting.isEmpty() && !running) {
+                    return;
+                }
+                segment = active;
+                position = segment.buffer.position();
+                batch = waiting;
+                waiting = new ArrayList<>();
+            }
+
+            try {
+                force(segment, position);
+                for (CompletableFuture<Void> future : batch) {
+                    future.complete(null);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("WAL: force failed: " + e.getMessage());
+                for (CompletableFuture<Void> future : batch) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Закрывает заполненный сегмент и открывает следующий; вызывается под lock
+     */
+    private void rotate() throws IOException {
+        Segment previous = active;
+        force(previous, previous.buffer.position());
+        // Все ожидающие записи лежат в закрываемом сегменте и уже на диске
+        for (CompletableFuture<Void> future : waiting) {
+            future.complete(null);
+        }
+        waiting = new ArrayList<>();
+
+        active = openSegment(nextSegmentNumber++);
+        synchronized (previous) {
+            previous.buffer = null;
+        }
+        previous.sealed = true;
+        if (previous.pending.get() == 0) {
+            deleteSegment(previous);
+        }
+    }
+
+    private void force(Segment segment, int position) {
+        synchronized (segment) {
+            MappedByteBuffer buffer = segment.buffer;
+            if (buffer == null || position <= segment.syncedPosition) {
+                return;
+            }
+            buffer.force(segment.syncedPosition, position - segment.syncedPosition);
+            segment.syncedPosition = position;
+        }
+        syncs.incrementAndGet();
+    }
+
+    private Segment openSegment(long number) throws IOException {
+        Path path = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Отображение остаётся действительным после закрытия канала
+            Segment segment = new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+            segments.put(number, segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Регистрирует записи восстановленного сегмента как ещё не записанные в БД
+     */
+    private int readSegment(Segment segment) throws IOException {
+        int count = 0;
+        try (RecordReader reader = new RecordReader(segment.path, 0, Long.MAX_VALUE)) {
+            MessageStore.StoredMessage message;
+            while ((message = reader.next()) != null) {
+                if (pendingMessages.put(message.getMessageId(), segment) == null) {
+                    segment.pending.incrementAndGet();
+                }
+                count++;
+            }
+            if (reader.torn) {
+                System.err.println("WAL: torn record in " + segment.path.getFileName() + ", ignoring the rest of segment");
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Последовательное чтение записей сегмента с position до end
+     */
+    private static class RecordReader implements AutoCloseable {
+        private final FileChannel channel;
+        private final long end;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final CRC32 crc = new CRC32();
+        // Начало следующей записи
+        long position;
+        // Чтение остановилось на записи с неверной CRC - недописанной при сбое
+        boolean torn;
+
+        RecordReader(Path path, long position, long end) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.position = position;
+            this.end = Math.min(end, channel.size());
+        }
+
+        /**
+         * Следующая запись; null - конец данных сегмента или недописанная запись
+         */
+        MessageStore.StoredMessage next() throws IOException {
+            if (end - position < HEADER_SIZE) {
+                return null;
+            }
+            header.clear();
+            readFully(header, position);
+            int payloadSize = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (payloadSize < FIXED_PAYLOAD_SIZE || payloadSize > end - position - HEADER_SIZE) {
+                return null;
+            }
+
+            byte[] payload = new byte[payloadSize];
+            readFully(ByteBuffer.wrap(payload), position + HEADER_SIZE);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                torn = true;
+                return null;
+            }
+            position += HEADER_SIZE + payloadSize;
+
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            int messageId = record.getInt();
+            int chatId = record.getInt();
+            int senderId = record.getInt();
+            Timestamp sentAt = new Timestamp(record.getLong());
+            String text = new String(payload, FIXED_PAYLOAD_SIZE, payloadSize - FIXED_PAYLOAD_SIZE, StandardCharsets.UTF_8);
+
+            MessageStore.StoredMessage message = new MessageStore.StoredMessage(messageId, chatId, senderId, text, sentAt);
+            message.persisted().complete(message);
+            return message;
+        }
+
+        private void readFully(ByteBuffer buffer, long offset) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of WAL segment");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.number, segment);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            // Например, Windows не даёт удалить ещё отображённый файл - повторная запись при старте безопасна
+            System.err.println("WAL: failed to delete " + segment.path.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package chat;
+
+import config.Config;
+import db.Database;
+import db.Sql;
+import json.JsonBuilder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Присутствие пользователей по живым WebSocket-подключениям.
+ * WebSocketServer сообщает о каждом подключении и отключении авторизованного
+ * клиента; для пользователя хранится атомарный счётчик подключений, общей
+ * блокировки нет. Переходы 0 -> 1 и 1 -> 0 ставят пользователя в очередь
+ * изменений (не больше одного раза), раз в presence.flushIntervalMs поток
+ * flush сравнивает текущее состояние с опубликованным: быстрое
+ * переподключение не порождает событий. Изменения одной пачкой пишутся в
+ * users (status, last_seen) и рассылаются участникам общих чатов - каждому
+ * получателю одно событие presence со всеми изменениями за интервал.
+ */
+public class PresenceService {
+    public static final String ONLINE = "online";
+    public static final String OFFLINE = "offline";
+
+    private static final long FLUSH_INTERVAL_MS = Config.getInt("presence.flushIntervalMs", 1000);
+
+    private static final Map<Integer, Presence> users = new ConcurrentHashMap<>();
+    private static final Queue<Presence> changed = new ConcurrentLinkedQueue<>();
+    private static volatile Delivery delivery;
+    private static ScheduledExecutorService flusher;
+
+    // Изменения, ещё не записанные в БД (только поток flush); повторяются при следующем flush
+    private static final Map<Integer, Change> unsaved = new LinkedHashMap<>();
+
+    private static final AtomicInteger onlineUsers = new AtomicInteger();
+    private static final AtomicLong published = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static final AtomicLong dbWrites = new AtomicLong();
+    private static final AtomicLong dbFailures = new AtomicLong();
+
+    /**
+     * Отправка события пользователю во все его подключения
+     */
+    public interface Delivery {
+        void send(int userId, String event);
+    }
+
+    private static class Presence {
+        final int userId;
+        // Число подключений; -1 - запись удалена из карты, подключение должно создать новую
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicBoolean queued = new AtomicBoolean();
+        volatile long lastSeen = System.currentTimeMillis();
+        // Последнее опубликованное состояние; меняет только поток flush
+        boolean publishedOnline;
+
+        Presence(int userId) {
+            this.userId = userId;
+        }
+    }
+
+    private static class Change {
+        final int userId;
+        final boolean online;
+        final long lastSeen;
+
+        Change(int userId, boolean online, long lastSeen) {
+            this.userId = userId;
+            this.online = online;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    /**
+     * Сбрасывает статусы, оставшиеся от прошлого запуска, и запускает периодический flush
+     */
+    public static synchronized void start(Delivery target) {
+        delivery = target;
+        if (flusher != null) {
+            return;
+        }
+        try (Connection conn = Database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(Sql.RESET_ONLINE_USERS)) {
+            int reset = stmt.executeUpdate();
+            if (reset > 0) {
+                System.out.println("Presence: reset " + reset + " stale online statuses");
+            }
+        } catch (SQLException e) {
+            System.err.println("Presence: failed to reset statuses: " + e.getMessage());
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(PresenceService::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Останавливает flush и записывает накопленные изменения
+     */
+    public static synchronized void stop() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flusher = null;
+        flush();
+    }
+
+    public static void connected(int userId) {
+        while (true) {
+            Presence presence = users.computeIfAbsent(userId, Presence::new);
+            int count = presence.connections.get();
+            if (count < 0) {
+                // Запись только что удалена потоком flush - создаём новую
+                users.remove(userId, presence);
+                continue;
+            }
+            if (presence.connections.compareAndSet(count, count + 1)) {
+                if (count == 0) {
+                    onlineUsers.incrementAndGet();
+                    markChanged(presence);
+                }
+                return;
+            }
+        }
+    }
+
+    public static void disconnected(int userId) {
+        Presence presence = users.get(userId);
+        if (presence == null) {
+            return;
+        }
+        while (true) {
+            int count = presence.connections.get();
+            if (count <= 0) {
+                return;
+            }
+            if (presence.connections.compareAndSet(count, count - 1)) {
+                if (count == 1) {
+                    presence.lastSeen = System.currentTimeMillis();
+                    onlineUsers.decrementAndGet();
+                    markChanged(presence);
+                }
+                return;
+            }
+        }
+    }
+
+    public static boolean isOnline(int userId) {
+        Presence presence = users.get(userId);
+        return presence != null && presence.connections.get() > 0;
+    }
+
+    /**
+     * Время отключения последнего подключения (мс); 0 - неизвестно с момента запуска
+     */
+    public static long getLastSeen(int userId) {
+        Presence presence = users.get(userId);
+        return presence != null ? presence.lastSeen : 0;
+    }
+
+    public static int getOnlineCount() {
+        return onlineUsers.get();
+    }
+
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("online_users", onlineUsers.get());
+        metrics.put("tracked_users", users.size());
+        metrics.put("pending_changes", changed.size());
+        metrics.put("published", published.get());
+        metrics.put("coalesced", coalesced.get());
+        metrics.put("db_writes", dbWrites.get());
+        metrics.put("db_failures", dbFailures.get());
+        return metrics;
+    }
+
+    private static void markChanged(Presence presence) {
+        if (presence.queued.compareAndSet(false, true)) {
+            changed.add(presence);
+        }
+    }
+
+    private static synchronized void flush() {
+        try {
+            List<Change> changes = collectChanges();
+            if (changes.isEmpty() && unsaved.isEmpty()) {
+                return;
+            }
+            for (Change change : changes) {
+                unsaved.put(change.userId, change);
+            }
+
+            try (Connection conn = Database.getConnection()) {
+                try {
+                    save(conn);
+                } catch (SQLException e) {
+                    dbFailures.incrementAndGet();
+                    System.err.println("Presence: failed to save statuses, will retry: " + e.getMessage());
+                }
+                // Контакты узнают об изменении, даже если запись в БД отложена
+                publish(conn, changes);
+            } catch (SQLException e) {
+                dbFailures.incrementAndGet();
+                System.err.println("Presence: flush failed: " + e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            // Исключение остановило бы scheduleWithFixedDelay
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Снимает очередь изменений; пользователь, вернувшийся к опубликованному состоянию, пропускается
+     */
+    private static List<Change> collectChanges() {
+        List<Change> changes = new ArrayList<>();
+        Presence presence;
+        while ((presence = changed.poll()) != null) {
+            // До чтения счётчика: переход после этого снова поставит пользователя в очередь
+            presence.queued.set(false);
+            boolean online = presence.connections.get() > 0;
+            if (online != presence.publishedOnline) {
+                presence.publishedOnline = online;
+                changes.add(new Change(presence.userId, online, online ? System.currentTimeMillis() : presence.lastSeen));
+            } else {
+                coalesced.incrementAndGet();
+            }
+            // Офлайн-пользователь больше не нужен в памяти
+            if (!online && presence.connections.compareAndSet(0, -1)) {
+                users.remove(presence.userId, presence);
+            }
+        }
+        return changes;
+    }
+
+    private static void save(Connection conn) throws SQLException {
+        if (unsaved.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.UPDATE_USER_PRESENCE)) {
+            for (Change change : unsaved.values()) {
+                stmt.setString(1, change.online ? ONLINE : OFFLINE);
+                stmt.setTimestamp(2, new Timestamp(change.lastSeen));
+                stmt.setInt(3, change.userId);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        for (Integer userId : unsaved.keySet()) {
+            UserProfileCache.invalidate(userId);
+        }
+        dbWrites.addAndGet(unsaved.size());
+        unsaved.clear();
+    }
+
+    /**
+     * Рассылает изменения онлайн-участникам общих чатов, по одному событию на получателя
+     */
+    private static void publish(Connection conn, List<Change> changes) throws SQLException {
+        Delivery target = delivery;
+        if (target == null || changes.isEmpty()) {
+            return;
+        }
+
+        Map<Integer, List<Map<String, Object>>> byRecipient = new HashMap<>();
+        for (Change change : changes) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("user_id", change.userId);
+            entry.put("status", change.online ? ONLINE : OFFLINE);
+            entry.put("last_seen", change.lastSeen);
+
+            for (int chatId : MembershipCache.getChats(conn, change.userId)) {
+                for (int memberId : MembershipCache.getMembers(conn, chatId)) {
+                    if (memberId == change.userId || !isOnline(memberId)) {
+                        continue;
+                    }
+                    List<Map<String, Object>> events = byRecipient.computeIfAbsent(memberId, id -> new ArrayList<>());
+                    // Участник нескольких общих чатов получает изменение один раз
+                    if (events.isEmpty() || events.get(events.size() - 1) != entry) {
+                        events.add(entry);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, List<Map<String, Object>>> recipient : byRecipient.entrySet()) {
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("type", "presence");
+            event.put("users", recipient.getValue());
+            target.send(recipient.getKey(), JsonBuilder.build(event));
+        }
+        published.addAndGet(changes.size());
+    }
+}
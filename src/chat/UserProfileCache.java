@@ -0,0 +1,139 @@
+package chat;
+
+import config.Config;
+import db.Database;
+import db.Sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш профилей пользователей (имя, статус, аватар) для отправки сообщений,
+ * обновления токена и /api/user-info. Записи живут cache.profile.ttlMs,
+ * количество ограничено cache.profile.maxUsers (LRU). После изменения
+ * данных пользователя в БД нужно вызвать invalidate().
+ */
+public class UserProfileCache {
+    private static final long TTL_MS = Config.getInt("cache.profile.ttlMs", 300000);
+    private static final int MAX_USERS = Config.getInt("cache.profile.maxUsers", 10000);
+
+    private static final Map<Integer, UserProfile> profiles = new LruMap<>(MAX_USERS);
+    // Увеличивается при каждой инвалидации: загрузка, начатая до неё, в кэш не попадает
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    public static class UserProfile {
+        private final int userId;
+        private final String username;
+        private final String status;
+        private final String avatarUrl;
+        private final long loadedAt;
+
+        public UserProfile(int userId, String username, String status, String avatarUrl) {
+            this.userId = userId;
+            this.username = username;
+            this.status = status;
+            this.avatarUrl = avatarUrl;
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        public int getUserId() { return userId; }
+        public String getUsername() { return username; }
+        public String getStatus() { return status; }
+        public String getAvatarUrl() { return avatarUrl; }
+    }
+
+    /**
+     * Профиль пользователя или null, если его нет. Соединение берётся из пула только при промахе
+     */
+    public static UserProfile get(int userId) throws SQLException {
+        UserProfile profile = getCached(userId);
+        if (profile != null) {
+            return profile;
+        }
+        try (Connection conn = Database.getConnection()) {
+            return load(conn, userId);
+        }
+    }
+
+    /**
+     * То же, но при промахе использует уже полученное соединение
+     */
+    public static UserProfile get(Connection conn, int userId) throws SQLException {
+        UserProfile profile = getCached(userId);
+        return profile != null ? profile : load(conn, userId);
+    }
+
+    public static String getUsername(Connection conn, int userId) throws SQLException {
+        UserProfile profile = get(conn, userId);
+        return profile != null ? profile.getUsername() : "Unknown";
+    }
+
+    public static String getUsername(int userId) throws SQLException {
+        UserProfile profile = get(userId);
+        return profile != null ? profile.getUsername() : "Unknown";
+    }
+
+    public static void invalidate(int userId) {
+        generation.incrementAndGet();
+        synchronized (profiles) {
+            profiles.remove(userId);
+        }
+    }
+
+    public static Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        synchronized (profiles) {
+            metrics.put("users", profiles.size());
+        }
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        return metrics;
+    }
+
+    private static UserProfile getCached(int userId) {
+        UserProfile profile;
+        synchronized (profiles) {
+            profile = profiles.get(userId);
+            if (profile != null && System.currentTimeMillis() - profile.loadedAt > TTL_MS) {
+                profiles.remove(userId);
+                profile = null;
+            }
+        }
+        if (profile != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return profile;
+    }
+
+    private static UserProfile load(Connection conn, int userId) throws SQLException {
+        long loadGeneration = generation.get();
+        UserProfile profile = null;
+        try (PreparedStatement stmt = conn.prepareStatement(Sql.SELECT_USER_PROFILE)) {
+            stmt.setInt(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    profile = new UserProfile(rs.getInt("user_id"), rs.getString("user_name"),
+                            rs.getString("status"), rs.getString("avatar_url"));
+                }
+            }
+        }
+        if (profile != null) {
+            synchronized (profiles) {
+                if (generation.get() == loadGeneration) {
+                    profiles.put(userId, profile);
+                }
+            }
+        }
+        return profile;
+    }
+}
@@ -5,44 +5,52 @@ import chat.loger.ChatLogger;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Активные сессии чата по имени пользователя. Без общей блокировки:
+ * счётчик меняется по результату putIfAbsent/remove, отметка активности
+ * не пишется в лог (присутствие ведёт PresenceService).
+ */
 public class UsersListInfo {
-    private static ConcurrentHashMap<String, UserSession> activeUsers = new ConcurrentHashMap<>();
-    private static int userCount = 0;
+    private static final ConcurrentHashMap<String, UserSession> activeUsers = new ConcurrentHashMap<>();
+    private static final AtomicInteger userCount = new AtomicInteger();
 
     public static class UserSession {
-        private String username;
-        private String sessionId;
-        private long lastActivity;
+        private final String username;
+        private final String sessionId;
+        private volatile long lastActivity;
 
         public UserSession(String username, String sessionId) {
             this.username = username;
             this.sessionId = sessionId;
             this.lastActivity = System.currentTimeMillis();
-            ChatLogger.logUserAction(username, "New session created");
         }
 
         public void updateActivity() {
             this.lastActivity = System.currentTimeMillis();
-            ChatLogger.logUserAction(username, "Session activity updated");
+        }
+
+        public long getLastActivity() {
+            return lastActivity;
         }
     }
-    public synchronized static void addUser(String username, String sessionId) {
-        if (!activeUsers.containsKey(username)) {
-            activeUsers.put(username, new UserSession(username, sessionId));
-            userCount++;
-            ChatLogger.logUserAction(username, "Added to active users. Total users now: " + userCount);
+
+    public static void addUser(String username, String sessionId) {
+        UserSession session = new UserSession(username, sessionId);
+        UserSession existing = activeUsers.putIfAbsent(username, session);
+        if (existing == null) {
+            int total = userCount.incrementAndGet();
+            ChatLogger.logUserAction(username, "Added to active users. Total users now: " + total);
         } else {
-            ChatLogger.logUserAction(username, "Existing user session updated");
-            activeUsers.get(username).updateActivity();
+            existing.updateActivity();
         }
     }
 
-    public synchronized static void removeUser(String username) {
-        if (activeUsers.containsKey(username)) {
-            activeUsers.remove(username);
-            userCount--;
-            ChatLogger.logUserAction(username, "Removed from active users. Total users now: " + userCount);
+    public static void removeUser(String username) {
+        if (activeUsers.remove(username) != null) {
+            int total = userCount.decrementAndGet();
+            ChatLogger.logUserAction(username, "Removed from active users. Total users now: " + total);
         } else {
             ChatLogger.logUserAction(username, "Attempt to remove non-existent user");
         }
@@ -57,10 +65,10 @@ public class UsersListInfo {
     }
 
     public static int getUserCount() {
-        return userCount;
+        return userCount.get();
     }
 
     public static UserSession getUserSession(String username) {
         return activeUsers.get(username);
     }
-}
\ No newline at end of file
+}
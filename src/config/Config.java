@@ -27,11 +27,26 @@
             return config.get(key);
         }
 
+        public static String get(String key, String defaultValue) {
+            String value = config.get(key);
+            return value != null ? value : defaultValue;
+        }
+
         public static int getInt(String key) {
             return Integer.parseInt(config.get(key));
         }
 
+        public static int getInt(String key, int defaultValue) {
+            String value = config.get(key);
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        }
+
         public static boolean getBoolean(String key) {
             return Boolean.parseBoolean(config.get(key));
         }
+
+        public static boolean getBoolean(String key, boolean defaultValue) {
+            String value = config.get(key);
+            return value != null ? Boolean.parseBoolean(value) : defaultValue;
+        }
     }
\ No newline at end of file
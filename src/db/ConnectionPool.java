@@ -0,0 +1,542 @@
+package db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул соединений с PostgreSQL.
+ * Размер ограничен справедливым семафором: ожидающие получают соединение в
+ * порядке очереди, ожидание ограничено таймаутом. Простаивавшее соединение
+ * перед выдачей проверяется через isValid(). Выданное соединение обёрнуто в
+ * прокси, у которого close() возвращает его в пул, поэтому вызывающий код
+ * пишет обычный try-with-resources. Соединения, не возвращённые дольше
+ * leakThresholdMs, логируются с именем получившего их потока; стек места
+ * получения запоминается только при leakStackTraces - это обход стека на
+ * каждую выдачу. Запросы, открытые через выданное соединение, тоже обёрнуты:
+ * getConnection() у них возвращает прокси, а не физическое соединение.
+ * Каждое соединение держит LRU-кэш подготовленных запросов (statementCacheSize):
+ * prepareStatement() с тем же текстом возвращает уже подготовленный запрос,
+ * а его close() лишь возвращает запрос в кэш.
+ */
+public class ConnectionPool {
+    // Соединение, простаивавшее меньше этого времени, не проверяется
+    private static final long VALIDATION_INTERVAL_MS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final long leakThresholdMs;
+    private final boolean leakStackTraces;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    // LIFO: чаще выдаются "тёплые" соединения, лишние дольше простаивают
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    // Метрики
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String password,
+                          int maxSize, long acquireTimeoutMs, long leakThresholdMs, boolean leakStackTraces,
+                          int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.leakStackTraces = leakStackTraces;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "db-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (leakThresholdMs > 0) {
+            long period = Math.max(1000, leakThresholdMs / 2);
+            housekeeper.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTransientConnectionException("Timed out after " + acquireTimeoutMs
+                        + " ms waiting for a database connection (pool size " + maxSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+                created.incrementAndGet();
+            }
+            pooled.borrowedAt = System.currentTimeMillis();
+            pooled.borrowedThread = Thread.currentThread().getName();
+            pooled.borrowedBy = leakStackTraces && leakThresholdMs > 0 ? new Throwable("Connection acquired here") : null;
+            pooled.leakReported = false;
+            borrowed.add(pooled);
+            acquired.incrementAndGet();
+            return pooled.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Снимок метрик: ожидание, загрузка пула, таймауты и утечки
+     */
+    public Map<String, Object> getMetrics() {
+        long acquiredCount = acquired.get();
+        int active = borrowed.size();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("max_size", maxSize);
+        metrics.put("active", active);
+        metrics.put("idle", idle.size());
+        metrics.put("waiting", permits.getQueueLength());
+        metrics.put("utilization", maxSize > 0 ? (double) active / maxSize : 0.0);
+        metrics.put("created", created.get());
+        metrics.put("acquired", acquiredCount);
+        metrics.put("timeouts", timeouts.get());
+        metrics.put("avg_wait_ms", acquiredCount > 0 ? totalWaitNanos.get() / acquiredCount / 1_000_000.0 : 0.0);
+        metrics.put("max_wait_ms", maxWaitNanos.get() / 1_000_000.0);
+        metrics.put("leaks", leaks.get());
+        long hits = statementHits.get();
+        long lookups = hits + statementMisses.get();
+        metrics.put("statement_cache_hits", hits);
+        metrics.put("statement_cache_misses", statementMisses.get());
+        metrics.put("statement_cache_hit_ratio", lookups > 0 ? (double) hits / lookups : 0.0);
+        return metrics;
+    }
+
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.closePhysical();
+        }
+    }
+
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - pooled.lastUsed < VALIDATION_INTERVAL_MS || pooled.isValid()) {
+                return pooled;
+            }
+            System.err.println("Discarding broken database connection");
+            pooled.closePhysical();
+        }
+        return null;
+    }
+
+    private void release(PooledConnection pooled, boolean broken) {
+        borrowed.remove(pooled);
+        if (!broken && !closed && pooled.reset()) {
+            pooled.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        } else {
+            pooled.closePhysical();
+        }
+        permits.release();
+    }
+
+    private void recordWait(long nanos) {
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooled : borrowed) {
+            if (!pooled.leakReported && now - pooled.borrowedAt > leakThresholdMs) {
+                pooled.leakReported = true;
+                leaks.incrementAndGet();
+                System.err.println("Possible connection leak: connection held for "
+                        + (now - pooled.borrowedAt) + " ms by thread " + pooled.borrowedThread);
+                if (pooled.borrowedBy != null) {
+                    pooled.borrowedBy.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Физическое соединение и его состояние в пуле
+     */
+    private final class PooledConnection {
+        private final Connection connection;
+        // LRU-кэш подготовленных запросов этого соединения (доступ только из владельца соединения)
+        private final Map<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                CachedStatement evicted = eldest.getValue();
+                evicted.evicted = true;
+                if (!evicted.inUse) {
+                    evicted.closePhysical();
+                }
+                return true;
+            }
+        };
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile long borrowedAt;
+        private volatile String borrowedThread;
+        private volatile Throwable borrowedBy;
+        private volatile boolean leakReported;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new Handle(this));
+        }
+
+        /**
+         * Берёт запрос из кэша или готовит новый. Если тот же запрос уже открыт
+         * этим же владельцем (вложенное использование), выдаётся некэшируемая копия
+         */
+        CachedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+            CachedStatement cached = statementCacheSize > 0 ? statements.get(key) : null;
+            if (cached != null && !cached.inUse) {
+                statementHits.incrementAndGet();
+                cached.inUse = true;
+                return cached;
+            }
+
+            statementMisses.incrementAndGet();
+            CachedStatement created = new CachedStatement(this, key,
+                    connection.prepareStatement(sql, autoGeneratedKeys));
+            created.inUse = true;
+            if (cached == null && statementCacheSize > 0) {
+                statements.put(key, created);
+            } else {
+                created.evicted = true;
+            }
+            return created;
+        }
+
+        boolean isValid() {
+            try {
+                return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Возвращает соединение в исходное состояние; false - соединение непригодно
+         */
+        boolean reset() {
+            try {
+                if (connection.isClosed()) {
+                    return false;
+                }
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                connection.clearWarnings();
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            for (CachedStatement cached : statements.values()) {
+                cached.closePhysical();
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing database connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Подготовленный запрос, живущий вместе с физическим соединением.
+     * Драйвер PostgreSQL переходит на серверный prepared statement только
+     * после нескольких выполнений одного и того же объекта, поэтому объект
+     * переиспользуется между владельцами соединения
+     */
+    private static final class CachedStatement {
+        private final PooledConnection owner;
+        private final String key;
+        private final PreparedStatement statement;
+        private boolean inUse;
+        // Настройки выполнения изменены (fetch size и т.п.) - после использования не кэшируем
+        private boolean dirty;
+        private boolean evicted;
+
+        CachedStatement(PooledConnection owner, String key, PreparedStatement statement) {
+            this.owner = owner;
+            this.key = key;
+            this.statement = statement;
+        }
+
+        /**
+         * Логическое закрытие: сбрасывает параметры и возвращает запрос в кэш
+         */
+        void release() {
+            inUse = false;
+            if (!dirty && !evicted) {
+                try {
+                    ResultSet resultSet = statement.getResultSet();
+                    if (resultSet != null) {
+                        resultSet.close();
+                    }
+                    statement.clearParameters();
+                    statement.clearWarnings();
+                    return;
+                } catch (SQLException e) {
+                    // Запрос в неизвестном состоянии - закрываем ниже
+                }
+            }
+            if (owner.statements.get(key) == this) {
+                owner.statements.remove(key);
+            }
+            closePhysical();
+        }
+
+        void closePhysical() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                System.err.println("Error closing prepared statement: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Выданная вызывающему коду ссылка на соединение. После close() ссылка
+     * становится недействительной, даже если физическое соединение уже выдано другому
+     */
+    private final class Handle implements InvocationHandler {
+        private PooledConnection pooled;
+        private boolean broken;
+        // Открытые через эту ссылку запросы: закрываются вместе с соединением
+        private final List<StatementHandle> openStatements = new ArrayList<>();
+
+        Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (pooled != null) {
+                        for (StatementHandle statement : new ArrayList<>(openStatements)) {
+                            statement.close();
+                        }
+                        PooledConnection released = pooled;
+                        pooled = null;
+                        release(released, broken);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return pooled == null || pooled.connection.isClosed();
+                }
+                case "prepareStatement", "createStatement", "prepareCall" -> {
+                    checkOpen();
+                    Class<?>[] types = method.getParameterTypes();
+                    StatementHandle handle;
+                    if (method.getName().equals("prepareStatement")
+                            && (types.length == 1 || (types.length == 2 && types[1] == int.class))) {
+                        int autoGeneratedKeys = types.length == 2 ? (Integer) args[1] : Statement.NO_GENERATED_KEYS;
+                        CachedStatement cached = call(() -> pooled.prepare((String) args[0], autoGeneratedKeys));
+                        handle = new StatementHandle(this, (Connection) proxy, cached, cached.statement);
+                    } else {
+                        // Остальные перегрузки не кэшируются, но тоже закрываются вместе с соединением
+                        Statement statement = call(() -> (Statement) method.invoke(pooled.connection, args));
+                        handle = new StatementHandle(this, (Connection) proxy, null, statement);
+                    }
+                    openStatements.add(handle);
+                    return Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                            new Class<?>[]{method.getReturnType()}, handle);
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "PooledConnection[" + (pooled != null ? pooled.connection : "closed") + "]";
+                }
+                default -> checkOpen();
+            }
+
+            return call(() -> method.invoke(pooled.connection, args));
+        }
+
+        private void checkOpen() throws SQLException {
+            if (pooled == null) {
+                throw new SQLException("Connection is closed");
+            }
+        }
+
+        /**
+         * Выполняет обращение к физическому соединению; ошибки класса 08
+         * (connection exception) помечают соединение как непригодное
+         */
+        <T> T call(SqlCall<T> call) throws Throwable {
+            try {
+                return call.run();
+            } catch (InvocationTargetException e) {
+                throw markBroken(e.getCause());
+            } catch (SQLException e) {
+                throw markBroken(e);
+            }
+        }
+
+        private Throwable markBroken(Throwable cause) {
+            if (cause instanceof SQLException sqlException && sqlException.getSQLState() != null
+                    && sqlException.getSQLState().startsWith("08")) {
+                broken = true;
+            }
+            return cause;
+        }
+    }
+
+    /**
+     * Ссылка на запрос, выданная вызывающему коду: close() возвращает кэшированный
+     * запрос в кэш соединения, некэшируемый - закрывает
+     */
+    private static final class StatementHandle implements InvocationHandler {
+        private final Handle connection;
+        private final Connection connectionProxy;
+        // null - запрос не из кэша
+        private final CachedStatement cached;
+        // null - ссылка закрыта
+        private Statement statement;
+
+        StatementHandle(Handle connection, Connection connectionProxy, CachedStatement cached, Statement statement) {
+            this.connection = connection;
+            this.connectionProxy = connectionProxy;
+            this.cached = cached;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            synchronized (connection) {
+                switch (method.getName()) {
+                    case "close" -> {
+                        close();
+                        return null;
+                    }
+                    case "isClosed" -> {
+                        return statement == null;
+                    }
+                    case "getConnection" -> {
+                        return connectionProxy;
+                    }
+                    case "equals" -> {
+                        return proxy == args[0];
+                    }
+                    case "hashCode" -> {
+                        return System.identityHashCode(proxy);
+                    }
+                    case "toString" -> {
+                        return "PooledStatement[" + (statement != null ? statement : "closed") + "]";
+                    }
+                    case "setFetchSize", "setFetchDirection", "setMaxRows", "setLargeMaxRows", "setMaxFieldSize",
+                         "setQueryTimeout", "setEscapeProcessing", "setPoolable", "closeOnCompletion",
+                         "setCursorName" -> {
+                        if (cached != null && statement != null) {
+                            cached.dirty = true;
+                        }
+                    }
+                    default -> {
+                    }
+                }
+                if (statement == null) {
+                    throw new SQLException("Statement is closed");
+                }
+                Statement current = statement;
+                return connection.call(() -> method.invoke(current, args));
+            }
+        }
+
+        void close() {
+            if (statement == null) {
+                return;
+            }
+            connection.openStatements.remove(this);
+            if (cached != null) {
+                cached.release();
+            } else {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    System.err.println("Error closing statement: " + e.getMessage());
+                }
+            }
+            statement = null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlCall<T> {
+        T run() throws Exception;
+    }
+}
@@ -0,0 +1,61 @@
+package db;
+
+import config.Config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Общий пул соединений приложения. Настройки берутся из server.conf (db.*);
+ * пул создаётся при первом обращении, если init() не был вызван явно.
+ */
+public class Database {
+    private static final String DEFAULT_URL = "jdbc:postgresql://localhost:5432/postgres";
+    private static final String DEFAULT_USER = "postgres";
+    private static final String DEFAULT_PASSWORD = "postgress";
+
+    private static volatile ConnectionPool pool;
+
+    public static synchronized void init() {
+        if (pool != null) {
+            return;
+        }
+        String url = Config.get("db.url");
+        String user = Config.get("db.user");
+        String password = Config.get("db.password");
+        int size = Config.getInt("db.pool.size", 20);
+
+        pool = new ConnectionPool(
+                url != null ? url : DEFAULT_URL,
+                user != null ? user : DEFAULT_USER,
+                password != null ? password : DEFAULT_PASSWORD,
+                size,
+                Config.getInt("db.pool.timeoutMs", 5000),
+                Config.getInt("db.pool.leakThresholdMs", 60000),
+                Config.getBoolean("db.pool.leakStackTraces", false),
+                Config.getInt("db.statementCacheSize", 64));
+        System.out.println("Database connection pool initialized (size " + size + ")");
+    }
+
+    public static Connection getConnection() throws SQLException {
+        ConnectionPool current = pool;
+        if (current == null) {
+            init();
+            current = pool;
+        }
+        return current.getConnection();
+    }
+
+    public static Map<String, Object> getMetrics() {
+        ConnectionPool current = pool;
+        return current != null ? current.getMetrics() : Map.of();
+    }
+
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package db;
+
+/**
+ * Запросы, которые выполняются постоянно (проверка доступа, отправка и
+ * загрузка сообщений, сессии). Собраны в одном месте, чтобы один и тот же
+ * запрос везде имел одинаковый текст - кэш подготовленных запросов
+ * ConnectionPool ищет их по тексту.
+ */
+public final class Sql {
+    private Sql() {
+    }
+
+    // Пользователи
+    public static final String SELECT_USER_PROFILE =
+            "SELECT user_id, user_name, status, avatar_url FROM users WHERE user_id = ?";
+    public static final String SELECT_USER_CREDENTIALS =
+            "SELECT user_id, user_password FROM users WHERE user_name = ?";
+    public static final String UPDATE_USER_PRESENCE =
+            "UPDATE users SET status = ?, last_seen = ? WHERE user_id = ?";
+    public static final String RESET_ONLINE_USERS =
+            "UPDATE users SET status = 'offline' WHERE status = 'online'";
+
+    // Сессии
+    public static final String SELECT_ACTIVE_SESSION =
+            "SELECT user_id, expires_at FROM user_sessions WHERE token = ? AND expires_at > NOW() AND is_active = TRUE";
+    public static final String SELECT_SESSION_USER =
+            "SELECT user_id FROM user_sessions WHERE token = ?";
+
+    // Чаты
+    public static final String SELECT_CHAT_MEMBERS =
+            "SELECT user_id FROM chat_members WHERE chat_id = ?";
+    public static final String SELECT_USER_CHATS =
+            "SELECT chat_id FROM chat_members WHERE user_id = ?";
+    public static final String SELECT_CHAT_INFO =
+            "SELECT chat_name, chat_type FROM chats WHERE chat_id = ?";
+
+    // Сообщения
+    /**
+     * Вставка с проверкой членства в том же запросе; пустой результат - отправитель
+     * не участник чата. Параметры: chat_id, sender_id, text, chat_id, sender_id
+     */
+    public static final String INSERT_MESSAGE_IF_MEMBER = """
+            INSERT INTO messages (chat_id, sender_id, message_text)
+            SELECT ?, ?, ?
+            WHERE EXISTS (SELECT 1 FROM chat_members WHERE chat_id = ? AND user_id = ?)
+            RETURNING message_id, sent_at
+            """;
+
+    /**
+     * Запись с заранее выделенным id (write-behind); повтор той же пачки безопасен.
+     * Параметры: message_id, chat_id, sender_id, text, sent_at
+     */
+    public static final String INSERT_MESSAGE_WITH_ID = """
+            INSERT INTO messages (message_id, chat_id, sender_id, message_text, sent_at)
+            VALUES (?, ?, ?, ?, ?)
+            ON CONFLICT (message_id) DO NOTHING
+            """;
+
+    /**
+     * Блок id сообщений из последовательности одним запросом. Параметр: количество
+     */
+    public static final String ALLOCATE_MESSAGE_IDS =
+            "SELECT nextval('messages_message_id_seq') FROM generate_series(1, ?)";
+
+    /**
+     * Страница истории: последние limit сообщений чата до курсора по индексу
+     * (chat_id, message_id), отсортированные по возрастанию.
+     * Параметры: user_id (для is_own_message), chat_id, before_message_id, limit
+     */
+    public static final String SELECT_MESSAGES_PAGE = """
+            SELECT * FROM (
+                SELECT m.message_id, m.message_text, m.sent_at,
+                       u.user_id as sender_id, u.user_name as sender_name,
+                       (u.user_id = ?) as is_own_message
+                FROM messages m
+                JOIN users u ON m.sender_id = u.user_id
+                WHERE m.chat_id = ? AND m.message_id < ? AND m.is_deleted = false
+                ORDER BY m.message_id DESC
+                LIMIT ?
+            ) page
+            ORDER BY message_id ASC
+            """;
+
+    /**
+     * Вся история чата для выгрузки, по возрастанию id по индексу (chat_id, message_id);
+     * читается порциями через setFetchSize. Параметры: user_id (для is_own_message), chat_id
+     */
+    public static final String SELECT_CHAT_HISTORY_EXPORT = """
+            SELECT m.message_id, m.message_text, m.sent_at,
+                   u.user_name as sender_name, (u.user_id = ?) as is_own_message
+            FROM messages m
+            JOIN users u ON m.sender_id = u.user_id
+            WHERE m.chat_id = ? AND m.is_deleted = false
+            ORDER BY m.message_id ASC
+            """;
+
+    /**
+     * Отмечает прочитанными все сообщения чата. Параметры: user_id, chat_id, user_id
+     */
+    public static final String INSERT_READ_RECEIPTS = """
+            INSERT INTO read_receipts (message_id, user_id, read_at)
+            SELECT m.message_id, ?, NOW()
+            FROM messages m
+            WHERE m.chat_id = ? AND m.sent_at <= NOW()
+            AND NOT EXISTS (
+                SELECT 1 FROM read_receipts rr
+                WHERE rr.message_id = m.message_id AND rr.user_id = ?
+            )
+            """;
+}
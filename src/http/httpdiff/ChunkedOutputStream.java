@@ -0,0 +1,137 @@
+package http.httpdiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поток тела ответа с Transfer-Encoding: chunked. Данные копятся в буфере
+ * фиксированного размера и уходят в канал отдельными чанками, поэтому память
+ * на ответ не зависит от его размера. Запись блокирующая - поток используется
+ * только из рабочих потоков сервера.
+ * Для HTTP/1.0 (chunked = false) данные пишутся как есть, а конец тела
+ * обозначается закрытием соединения.
+ */
+public class ChunkedOutputStream extends OutputStream {
+    private static final byte[] NEW_LINE = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private static final CompletionHandler<Long, CompletableFuture<Long>> COMPLETE_FUTURE =
+            new CompletionHandler<>() {
+                @Override
+                public void completed(Long result, CompletableFuture<Long> future) {
+                    future.complete(result);
+                }
+
+                @Override
+                public void failed(Throwable exc, CompletableFuture<Long> future) {
+                    future.completeExceptionally(exc);
+                }
+            };
+
+    private final AsynchronousSocketChannel channel;
+    private final boolean chunked;
+    private final long writeTimeoutMs;
+    private final byte[] buffer;
+    // Заголовки ответа уходят вместе с первым чанком одной gathering-записью
+    private ByteBuffer head;
+    private int count;
+    private boolean closed;
+
+    public ChunkedOutputStream(AsynchronousSocketChannel channel, ByteBuffer head, boolean chunked,
+                               int bufferSize, long writeTimeoutMs) {
+        this.channel = channel;
+        this.head = head;
+        this.chunked = chunked;
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.buffer = new byte[bufferSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flushChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            int n = Math.min(length, buffer.length - count);
+            System.arraycopy(data, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+    }
+
+    /**
+     * Дописывает последний чанк; соединение при этом не закрывается
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flushChunk();
+        if (chunked) {
+            writeFully(ByteBuffer.wrap(LAST_CHUNK));
+        } else if (head != null) {
+            writeFully();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (chunked) {
+            byte[] size = Integer.toHexString(count).getBytes(StandardCharsets.US_ASCII);
+            writeFully(ByteBuffer.wrap(size), ByteBuffer.wrap(NEW_LINE),
+                    ByteBuffer.wrap(buffer, 0, count), ByteBuffer.wrap(NEW_LINE));
+        } else {
+            writeFully(ByteBuffer.wrap(buffer, 0, count));
+        }
+        count = 0;
+    }
+
+    private void writeFully(ByteBuffer... data) throws IOException {
+        ByteBuffer[] buffers = data;
+        if (head != null) {
+            buffers = new ByteBuffer[data.length + 1];
+            buffers[0] = head;
+            System.arraycopy(data, 0, buffers, 1, data.length);
+            head = null;
+        }
+        try {
+            int offset;
+            while ((offset = HttpResponseWriter.firstRemaining(buffers, 0)) < buffers.length) {
+                CompletableFuture<Long> result = new CompletableFuture<>();
+                channel.write(buffers, offset, buffers.length - offset, writeTimeoutMs, TimeUnit.MILLISECONDS, result,
+                        COMPLETE_FUTURE);
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing response", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write response: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
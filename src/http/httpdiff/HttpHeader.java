@@ -6,5 +6,35 @@ public class HttpHeader {
     public static final String CONTENT_LENGTH = "Content-Length";
     public static final String SERVER = "Server";
     public static final String CONNECTION = "Connection";
+    public static final String KEEP_ALIVE = "Keep-Alive";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String HOST = "Host";
+    public static final String USER_AGENT = "User-Agent";
+    public static final String ACCEPT = "Accept";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String COOKIE = "Cookie";
+    public static final String SET_COOKIE = "Set-Cookie";
+    public static final String ORIGIN = "Origin";
+    public static final String LOCATION = "Location";
+    public static final String UPGRADE = "Upgrade";
+    public static final String SEC_WEBSOCKET_KEY = "Sec-WebSocket-Key";
+    public static final String SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
+    public static final String SEC_WEBSOCKET_PROTOCOL = "Sec-WebSocket-Protocol";
+    public static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+    public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+    public static final String X_REAL_IP = "X-Real-IP";
+    public static final String X_REQUESTED_WITH = "X-Requested-With";
+
+    static final String[] WELL_KNOWN = {
+            CONTENT_TYPE, CONTENT_LENGTH, SERVER, CONNECTION, KEEP_ALIVE, TRANSFER_ENCODING,
+            HOST, USER_AGENT, ACCEPT, ACCEPT_ENCODING, AUTHORIZATION, COOKIE, SET_COOKIE,
+            ORIGIN, LOCATION, UPGRADE, SEC_WEBSOCKET_KEY, SEC_WEBSOCKET_VERSION,
+            SEC_WEBSOCKET_PROTOCOL, SEC_WEBSOCKET_EXTENSIONS, X_FORWARDED_FOR, X_REAL_IP,
+            X_REQUESTED_WITH, "Accept-Language", "Cache-Control", "Pragma", "Referer",
+            "Sec-Fetch-Dest", "Sec-Fetch-Mode", "Sec-Fetch-Site", "Access-Control-Allow-Origin",
+            "Access-Control-Allow-Methods", "Access-Control-Allow-Headers",
+            "Access-Control-Allow-Credentials", "Access-Control-Max-Age", "Charset"
+    };
 
 }
@@ -0,0 +1,248 @@
+package http.httpdiff;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Заголовки HTTP-сообщения с поиском без учёта регистра за O(1).
+ * Ключом служит имя в нижнем регистре; для известных имён из HttpHeader
+ * используются заранее подготовленные (интернированные) ключи, поэтому
+ * поиск по константам HttpHeader не создаёт строк.
+ * Заголовок может иметь несколько значений (Cookie, Set-Cookie): get()
+ * возвращает их объединение, getAll() - список, forEachValue() - каждое отдельно.
+ * Значения, прочитанные парсером, декодируются из байтов при первом обращении.
+ */
+public class HttpHeaders extends AbstractMap<String, String> {
+    // Каноническое имя -> ключ, и ключ -> каноническое имя
+    private static final Map<String, String> KNOWN_KEYS = new HashMap<>();
+    private static final Map<String, String> CANONICAL_NAMES = new HashMap<>();
+    // Канонические имена, сгруппированные по длине, для разбора из байтов
+    private static final String[][] KNOWN_BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+        for (String name : HttpHeader.WELL_KNOWN) {
+            String key = name.toLowerCase(Locale.ROOT).intern();
+            KNOWN_KEYS.put(name, key);
+            CANONICAL_NAMES.put(key, name);
+            maxLength = Math.max(maxLength, name.length());
+        }
+        KNOWN_BY_LENGTH = new String[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            List<String> names = new ArrayList<>();
+            for (String name : HttpHeader.WELL_KNOWN) {
+                if (name.length() == length) {
+                    names.add(name);
+                }
+            }
+            KNOWN_BY_LENGTH[length] = names.toArray(new String[0]);
+        }
+    }
+
+    private final Map<String, Field> fields = new LinkedHashMap<>();
+
+    public HttpHeaders() {
+    }
+
+    /**
+     * Строит заголовки по смещениям, найденным HttpRequestParser:
+     * по 4 числа на заголовок (начало/конец имени, начало/конец значения)
+     */
+    static HttpHeaders fromRaw(byte[] head, int[] offsets, int count) {
+        HttpHeaders headers = new HttpHeaders();
+        for (int i = 0; i < count; i++) {
+            String name = decodeName(head, offsets[i * 4], offsets[i * 4 + 1]);
+            Value value = new Value(head, offsets[i * 4 + 2], offsets[i * 4 + 3]);
+            headers.addValue(name, value);
+        }
+        return headers;
+    }
+
+    @Override
+    public String get(Object name) {
+        Field field = name instanceof String ? fields.get(key((String) name)) : null;
+        return field != null ? field.joined() : null;
+    }
+
+    public List<String> getAll(String name) {
+        Field field = fields.get(key(name));
+        List<String> result = new ArrayList<>();
+        if (field != null) {
+            for (Value value : field.values) {
+                result.add(value.get());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return name instanceof String && fields.containsKey(key((String) name));
+    }
+
+    /**
+     * Заменяет все значения заголовка одним
+     */
+    @Override
+    public String put(String name, String value) {
+        String key = key(name);
+        Field previous = fields.put(key, new Field(key, name, new Value(value)));
+        return previous != null ? previous.joined() : null;
+    }
+
+    /**
+     * Добавляет ещё одно значение заголовка, не удаляя существующие
+     */
+    public void add(String name, String value) {
+        addValue(name, new Value(value));
+    }
+
+    @Override
+    public String remove(Object name) {
+        Field removed = name instanceof String ? fields.remove(key((String) name)) : null;
+        return removed != null ? removed.joined() : null;
+    }
+
+    @Override
+    public int size() {
+        return fields.size();
+    }
+
+    @Override
+    public void clear() {
+        fields.clear();
+    }
+
+    /**
+     * Перебирает все значения по отдельности (для сериализации: каждый
+     * Set-Cookie должен идти отдельной строкой)
+     */
+    public void forEachValue(BiConsumer<String, String> action) {
+        for (Field field : fields.values()) {
+            for (Value value : field.values) {
+                action.accept(field.name, value.get());
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                Iterator<Field> iterator = fields.values().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        Field field = iterator.next();
+                        return new SimpleImmutableEntry<>(field.name, field.joined());
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return fields.size();
+            }
+        };
+    }
+
+    private void addValue(String name, Value value) {
+        String key = key(name);
+        Field field = fields.get(key);
+        if (field == null) {
+            fields.put(key, new Field(key, name, value));
+        } else {
+            field.values.add(value);
+        }
+    }
+
+    static String key(String name) {
+        String key = KNOWN_KEYS.get(name);
+        return key != null ? key : name.toLowerCase(Locale.ROOT);
+    }
+
+    private static String decodeName(byte[] data, int start, int end) {
+        int length = end - start;
+        if (length < KNOWN_BY_LENGTH.length) {
+            for (String name : KNOWN_BY_LENGTH[length]) {
+                if (HttpRequestParser.equalsIgnoreCase(data, start, name)) {
+                    return name;
+                }
+            }
+        }
+        return new String(data, start, length, StandardCharsets.UTF_8);
+    }
+
+    private static final class Field {
+        private final String name;
+        private final List<Value> values = new ArrayList<>(1);
+
+        Field(String key, String name, Value value) {
+            String canonical = CANONICAL_NAMES.get(key);
+            this.name = canonical != null ? canonical : name;
+            values.add(value);
+        }
+
+        String joined() {
+            if (values.size() == 1) {
+                return values.get(0).get();
+            }
+            // Несколько Cookie склеиваются через "; " (RFC 6265), остальные - через ", "
+            String separator = HttpHeader.COOKIE.equals(name) ? "; " : ", ";
+            StringBuilder builder = new StringBuilder();
+            for (Value value : values) {
+                if (builder.length() > 0) {
+                    builder.append(separator);
+                }
+                builder.append(value.get());
+            }
+            return builder.toString();
+        }
+    }
+
+    private static final class Value {
+        private byte[] source;
+        private int start;
+        private int end;
+        private String value;
+
+        Value(String value) {
+            this.value = value;
+        }
+
+        Value(byte[] source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        String get() {
+            if (value == null) {
+                value = new String(source, start, end - start, StandardCharsets.UTF_8);
+                source = null;
+            }
+            return value;
+        }
+    }
+}
@@ -11,75 +11,45 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class HttpRequest {
-    private final static String DELIMITER = "\r\n\r\n";
-    private final static String NEW_LINE = "\r\n";
-    private final static String HEADER_DELIMITER = ":";
     private final Map<String, String> params = new HashMap<>();
-    private final String message;
     private final HttpMethod method;
     private final String url;
-    private final Map<String, String> headers;
-    private final String body;
+    private final String version;
+    // Сырые байты стартовой строки и заголовков (см. HttpRequestParser)
+    private final byte[] head;
+    private final int headLength;
+    private final HttpHeaders headers;
+    private final byte[] bodyBytes;
     private final Map<String, String> queryParams;
     private final String pathWithoutQuery;
+    private String body;
+    private String message;
     private Socket socket;
 
-    public HttpRequest(String message, Socket socket) {
-        this.socket = socket;
-        this.message = message;
-
-        if (message == null || message.isEmpty()) {
-            throw new IllegalArgumentException("Empty HTTP request");
-        }
-        String[] parts = message.split(DELIMITER, 2);
-        String head = parts[0];
-
-        String[] headers = head.split(NEW_LINE);
-        if (headers.length == 0) {
-            throw new IllegalArgumentException("Invalid HTTP request: no headers");
-        }
-
-        String[] firstLine = headers[0].split(" ");
-        if (firstLine.length < 2) {
-            throw new IllegalArgumentException("Invalid HTTP start line");
-        }
-
-        try {
-            this.method = HttpMethod.valueOf(firstLine[0]);
-        } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException("Unsupported HTTP method: " + firstLine[0]);
-        }
-
-        this.url = firstLine[1];
+    HttpRequest(HttpMethod method, String url, String version, byte[] head, int headLength,
+                HttpHeaders headers, byte[] bodyBytes) {
+        this.method = method;
+        this.url = url;
+        this.version = version;
+        this.head = head;
+        this.headLength = headLength;
+        this.headers = headers;
+        this.bodyBytes = bodyBytes;
 
         // Парсим query parameters при создании объекта
         this.queryParams = parseQueryParams(this.url);
         this.pathWithoutQuery = extractPathWithoutQuery(this.url);
+    }
 
-        Map<String, String> headersMap = new HashMap<>();
-        for (int i = 1; i < headers.length; i++) {
-            String[] headerParts = headers[i].split(HEADER_DELIMITER, 2);
-            if (headerParts.length == 2) {
-                headersMap.put(headerParts[0].trim(), headerParts[1].trim());
-            }
-        }
-        this.headers = Collections.unmodifiableMap(headersMap);
-
-        String bodyContent = parts.length > 1 ? parts[1] : "";
-        String contentLength = this.headers.get(HttpHeader.CONTENT_LENGTH);
-
-        if (contentLength != null) {
-            try {
-                int length = Integer.parseInt(contentLength);
-                this.body = bodyContent.length() > length
-                        ? bodyContent.substring(0, length)
-                        : bodyContent;
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Invalid Content-Length header");
-            }
-        } else {
-            this.body = bodyContent;
-        }
+    private HttpRequest(HttpRequest parsed, String message, Socket socket) {
+        this(parsed.method, parsed.url, parsed.version, parsed.head, parsed.headLength,
+                parsed.headers, parsed.bodyBytes);
+        this.message = message;
+        this.socket = socket;
+    }
+
+    public HttpRequest(String message, Socket socket) {
+        this(HttpRequestParser.parseMessage(message), message, socket);
     }
 
     public HttpRequest(String message) {
@@ -186,11 +156,32 @@ public class HttpRequest {
         return params.get(name);
     }
 
-    public String getMessage() { return message; }
+    public String getMessage() {
+        if (message == null) {
+            message = new String(head, 0, headLength, StandardCharsets.UTF_8) + getBody();
+        }
+        return message;
+    }
+
     public HttpMethod getMethod() { return method; }
     public String getUrl() { return url; }
-    public Map<String, String> getHeaders() { return headers; }
-    public String getBody() { return body; }
+    public String getVersion() { return version; }
+
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    public String getBody() {
+        if (body == null) {
+            body = new String(bodyBytes, StandardCharsets.UTF_8);
+        }
+        return body;
+    }
+
+    public byte[] getBodyBytes() {
+        return bodyBytes;
+    }
+
 
     // ДОБАВЛЕННЫЕ МЕТОДЫ:
 
@@ -198,24 +189,14 @@ public class HttpRequest {
      * Получает значение заголовка по имени (case-insensitive)
      */
     public String getHeader(String headerName) {
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            if (entry.getKey().equalsIgnoreCase(headerName)) {
-                return entry.getValue();
-            }
-        }
-        return null;
+        return headers.get(headerName);
     }
 
     /**
      * Проверяет наличие заголовка (case-insensitive)
      */
     public boolean hasHeader(String headerName) {
-        for (String key : headers.keySet()) {
-            if (key.equalsIgnoreCase(headerName)) {
-                return true;
-            }
-        }
-        return false;
+        return headers.containsKey(headerName);
     }
 
     /**
@@ -243,12 +224,12 @@ public class HttpRequest {
         }
 
         // Пробуем получить из заголовков (для прокси)
-        String ip = getHeader("X-Forwarded-For");
+        String ip = getHeader(HttpHeader.X_FORWARDED_FOR);
         if (ip != null && !ip.isEmpty()) {
             return ip.split(",")[0].trim();
         }
 
-        ip = getHeader("X-Real-IP");
+        ip = getHeader(HttpHeader.X_REAL_IP);
         if (ip != null && !ip.isEmpty()) {
             return ip;
         }
@@ -257,16 +238,16 @@ public class HttpRequest {
     }
 
     public String getUserAgent() {
-        return getHeader("User-Agent");
+        return getHeader(HttpHeader.USER_AGENT);
     }
 
     public boolean isAjax() {
-        String xRequestedWith = getHeader("X-Requested-With");
+        String xRequestedWith = getHeader(HttpHeader.X_REQUESTED_WITH);
         return "XMLHttpRequest".equalsIgnoreCase(xRequestedWith);
     }
 
     public String getContentType() {
-        return getHeader("Content-Type");
+        return getHeader(HttpHeader.CONTENT_TYPE);
     }
 
     public boolean isJsonContent() {
@@ -285,7 +266,7 @@ public class HttpRequest {
     }
 
     public String getCookie(String cookieName) {
-        String cookieHeader = getHeader("Cookie");
+        String cookieHeader = getHeader(HttpHeader.COOKIE);
         if (cookieHeader != null) {
             String[] cookies = cookieHeader.split(";");
             for (String cookie : cookies) {
@@ -298,6 +279,24 @@ public class HttpRequest {
         return null;
     }
 
+    /**
+     * Можно ли оставить соединение открытым после ответа:
+     * в HTTP/1.1 по умолчанию да, в HTTP/1.0 - только при "Connection: keep-alive"
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader(HttpHeader.CONNECTION);
+        if (connection != null) {
+            String value = connection.toLowerCase();
+            if (value.contains("close")) {
+                return false;
+            }
+            if (value.contains("keep-alive")) {
+                return true;
+            }
+        }
+        return !"HTTP/1.0".equals(version);
+    }
+
     public boolean isGet() {
         return method == HttpMethod.GET;
     }
@@ -313,8 +312,8 @@ public class HttpRequest {
 
     @Override
     public String toString() {
-        return method + " " + url + " HTTP/1.1\n" +
-                "Headers: " + headers + "\n" +
-                "Body: " + (body != null ? body.substring(0, Math.min(100, body.length())) + "..." : "null");
+        return method + " " + url + " " + version + "\n" +
+                "Headers: " + getHeaders() + "\n" +
+                "Body: " + getBody().substring(0, Math.min(100, getBody().length())) + "...";
     }
 }
\ No newline at end of file
@@ -0,0 +1,438 @@
+package http.httpdiff;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Инкрементальный разбор HTTP-запроса прямо из ByteBuffer.
+ * Байты заголовков копируются один раз в массив head, для каждого заголовка
+ * запоминаются только смещения имени и значения; значения декодируются в строки
+ * лениво (см. HttpHeaders), когда заголовок действительно запрашивается.
+ * Тело читается частями по мере поступления (Content-Length или
+ * Transfer-Encoding: chunked), без повторного сканирования прочитанных данных;
+ * буфер тела растёт вместе с пришедшими байтами, а не выделяется сразу по
+ * объявленному размеру. Запрос отдаётся обработчику только с полным телом в
+ * памяти, не больше maxBodySize (server.maxBodySize): обработчики (HttpHandler)
+ * получают тело целиком как JSON-строку, загрузок файлов нет, поэтому потоковой
+ * передачи тела обработчику нет.
+ * Один парсер обслуживает одно соединение: после готового запроса он сбрасывается
+ * и продолжает разбирать следующий (pipelining).
+ */
+public class HttpRequestParser {
+    private static final int INITIAL_HEAD_SIZE = 1024;
+    private static final int INITIAL_BODY_SIZE = 8192;
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private enum State { REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS }
+
+    private final int maxHeaderSize;
+    private final int maxBodySize;
+
+    private State state = State.REQUEST_LINE;
+    private byte[] head = new byte[INITIAL_HEAD_SIZE];
+    private int headLength;
+    private int lineStart;
+    // По 4 смещения на заголовок: начало и конец имени, начало и конец значения
+    private int[] headerOffsets = new int[64];
+    private int headerCount;
+
+    private HttpMethod method;
+    private String url;
+    private String version;
+
+    private byte[] body = EMPTY_BODY;
+    private int bodyLength;
+    private int remaining;
+
+    public HttpRequestParser(int maxHeaderSize, int maxBodySize) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Разбирает полный запрос из строки (совместимость с HttpRequest(String))
+     */
+    static HttpRequest parseMessage(String message) {
+        if (message == null || message.isEmpty()) {
+            throw new HttpParseException(400, "Empty HTTP request");
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        HttpRequestParser parser = new HttpRequestParser(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        HttpRequest request = parser.parse(ByteBuffer.wrap(bytes));
+        return request != null ? request : parser.endOfInput();
+    }
+
+    /**
+     * Потребляет байты из буфера. Возвращает запрос, как только он прочитан целиком
+     * (оставшиеся в буфере байты относятся к следующему запросу), или null, если
+     * нужно дочитать данные.
+     */
+    public HttpRequest parse(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case BODY, CHUNK_DATA -> {
+                    int n = Math.min(remaining, buffer.remaining());
+                    if (bodyLength + n > body.length) {
+                        // Удвоение, но не дальше конца тела (или текущего чанка)
+                        long capacity = Math.max((long) body.length * 2, bodyLength + n);
+                        body = Arrays.copyOf(body, (int) Math.min(capacity, (long) bodyLength + remaining));
+                    }
+                    buffer.get(body, bodyLength, n);
+                    bodyLength += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        if (state == State.BODY) {
+                            return complete();
+                        }
+                        state = State.CHUNK_DATA_END;
+                    }
+                }
+                default -> {
+                    if (!readLine(buffer)) {
+                        return null;
+                    }
+                    HttpRequest request = processLine();
+                    if (request != null) {
+                        return request;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Начат ли разбор очередного запроса (есть ли непрочитанный хвост)
+     */
+    public boolean hasPartialRequest() {
+        return state != State.REQUEST_LINE || headLength > 0;
+    }
+
+    public void reset() {
+        state = State.REQUEST_LINE;
+        head = new byte[INITIAL_HEAD_SIZE];
+        headLength = 0;
+        lineStart = 0;
+        headerOffsets = new int[64];
+        headerCount = 0;
+        method = null;
+        url = null;
+        version = null;
+        body = EMPTY_BODY;
+        bodyLength = 0;
+        remaining = 0;
+    }
+
+    private HttpRequest endOfInput() {
+        if (headLength > lineStart) {
+            head = ensureCapacity(head, headLength + 1);
+            head[headLength++] = '\n';
+            HttpRequest request = processLine();
+            if (request != null) {
+                return request;
+            }
+        }
+        if (state == State.REQUEST_LINE) {
+            throw new HttpParseException(400, "Invalid HTTP request: no headers");
+        }
+        return complete();
+    }
+
+    private boolean readLine(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (headLength == head.length) {
+                if (head.length >= maxHeaderSize) {
+                    throw new HttpParseException(431, "Request header too large");
+                }
+                head = ensureCapacity(head, (int) Math.min((long) head.length * 2, maxHeaderSize));
+            }
+            byte b = buffer.get();
+            head[headLength++] = b;
+            if (b == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private HttpRequest processLine() {
+        int end = headLength - 1;
+        if (end > lineStart && head[end - 1] == '\r') {
+            end--;
+        }
+
+        switch (state) {
+            case REQUEST_LINE -> {
+                if (end == lineStart) {
+                    // Пустые строки перед запросом допускаются RFC 7230
+                    headLength = lineStart;
+                    return null;
+                }
+                parseRequestLine(lineStart, end);
+                state = State.HEADERS;
+            }
+            case HEADERS -> {
+                if (end == lineStart) {
+                    return headersComplete();
+                }
+                parseHeaderLine(lineStart, end);
+            }
+            case CHUNK_SIZE -> {
+                int size = parseChunkSize(lineStart, end);
+                headLength = lineStart;
+                if (size == 0) {
+                    state = State.TRAILERS;
+                } else {
+                    if ((long) bodyLength + size > maxBodySize) {
+                        throw new HttpParseException(413, "Request too large");
+                    }
+                    remaining = size;
+                    state = State.CHUNK_DATA;
+                }
+                return null;
+            }
+            case CHUNK_DATA_END -> {
+                if (end != lineStart) {
+                    throw new HttpParseException(400, "Invalid chunk terminator");
+                }
+                headLength = lineStart;
+                state = State.CHUNK_SIZE;
+                return null;
+            }
+            case TRAILERS -> {
+                boolean last = end == lineStart;
+                headLength = lineStart;
+                return last ? complete() : null;
+            }
+            default -> throw new IllegalStateException("Unexpected parser state: " + state);
+        }
+
+        lineStart = headLength;
+        return null;
+    }
+
+    private void parseRequestLine(int start, int end) {
+        int methodEnd = indexOf(' ', start, end);
+        if (methodEnd < 0) {
+            throw new HttpParseException(400, "Invalid HTTP start line");
+        }
+        int urlStart = methodEnd + 1;
+        int urlEnd = indexOf(' ', urlStart, end);
+        if (urlEnd < 0) {
+            urlEnd = end;
+        }
+        if (urlEnd == urlStart) {
+            throw new HttpParseException(400, "Invalid HTTP start line");
+        }
+
+        method = parseMethod(start, methodEnd);
+        url = new String(head, urlStart, urlEnd - urlStart, StandardCharsets.UTF_8);
+        version = urlEnd < end
+                ? new String(head, urlEnd + 1, end - urlEnd - 1, StandardCharsets.ISO_8859_1).trim()
+                : "HTTP/1.0";
+    }
+
+    private HttpMethod parseMethod(int start, int end) {
+        for (HttpMethod candidate : HttpMethod.values()) {
+            String name = candidate.name();
+            if (name.length() == end - start && matches(start, name)) {
+                return candidate;
+            }
+        }
+        throw new HttpParseException(501, "Unsupported HTTP method: "
+                + new String(head, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private void parseHeaderLine(int start, int end) {
+        int colon = indexOf(':', start, end);
+        if (colon <= start) {
+            throw new HttpParseException(400, "Malformed header line");
+        }
+
+        int nameEnd = colon;
+        while (nameEnd > start && isWhitespace(head[nameEnd - 1])) nameEnd--;
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(head[valueStart])) valueStart++;
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(head[valueEnd - 1])) valueEnd--;
+
+        int offset = headerCount * 4;
+        if (offset + 4 > headerOffsets.length) {
+            headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+        }
+        headerOffsets[offset] = start;
+        headerOffsets[offset + 1] = nameEnd;
+        headerOffsets[offset + 2] = valueStart;
+        headerOffsets[offset + 3] = valueEnd;
+        headerCount++;
+    }
+
+    private HttpRequest headersComplete() {
+        lineStart = headLength;
+
+        int transferEncoding = findHeader("Transfer-Encoding", 0);
+        int contentLength = findHeader(HttpHeader.CONTENT_LENGTH, 0);
+        // Неоднозначная длина тела - путь к подмене запросов (request smuggling)
+        if (contentLength >= 0 && findHeader(HttpHeader.CONTENT_LENGTH, contentLength + 1) >= 0) {
+            throw new HttpParseException(400, "Duplicate Content-Length header");
+        }
+        if (contentLength >= 0 && transferEncoding >= 0) {
+            throw new HttpParseException(400, "Both Content-Length and Transfer-Encoding present");
+        }
+
+        if (transferEncoding >= 0) {
+            if (!valueContainsIgnoreCase(transferEncoding, "chunked")) {
+                throw new HttpParseException(501, "Unsupported Transfer-Encoding");
+            }
+            body = new byte[Math.min(INITIAL_BODY_SIZE, maxBodySize)];
+            state = State.CHUNK_SIZE;
+            return null;
+        }
+
+        if (contentLength < 0) {
+            return complete();
+        }
+
+        long length = parseDecimal(headerOffsets[contentLength * 4 + 2], headerOffsets[contentLength * 4 + 3]);
+        if (length < 0) {
+            throw new HttpParseException(400, "Invalid Content-Length header");
+        }
+        if (length > maxBodySize) {
+            throw new HttpParseException(413, "Request too large");
+        }
+        if (length == 0) {
+            return complete();
+        }
+
+        body = new byte[(int) Math.min(length, INITIAL_BODY_SIZE)];
+        remaining = (int) length;
+        state = State.BODY;
+        return null;
+    }
+
+    private HttpRequest complete() {
+        byte[] requestBody = bodyLength == body.length ? body : Arrays.copyOf(body, bodyLength);
+        HttpHeaders headers = HttpHeaders.fromRaw(head, headerOffsets, headerCount);
+        HttpRequest request = new HttpRequest(method, url, version, head, headLength, headers, requestBody);
+        reset();
+        return request;
+    }
+
+    /**
+     * Ищет заголовок по имени без учёта регистра, начиная с from, сравнивая байты без создания строк
+     */
+    private int findHeader(String name, int from) {
+        int length = name.length();
+        for (int i = from; i < headerCount; i++) {
+            int start = headerOffsets[i * 4];
+            if (headerOffsets[i * 4 + 1] - start == length && equalsIgnoreCase(head, start, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean valueContainsIgnoreCase(int header, String token) {
+        int start = headerOffsets[header * 4 + 2];
+        int end = headerOffsets[header * 4 + 3];
+        for (int i = start; i <= end - token.length(); i++) {
+            if (equalsIgnoreCase(head, i, token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int parseChunkSize(int start, int end) {
+        int size = 0;
+        int digits = 0;
+        for (int i = start; i < end && head[i] != ';'; i++) {
+            int digit = Character.digit(head[i], 16);
+            if (digit < 0) {
+                if (isWhitespace(head[i])) continue;
+                throw new HttpParseException(400, "Invalid chunk size");
+            }
+            if (size > (Integer.MAX_VALUE >> 4)) {
+                throw new HttpParseException(413, "Request too large");
+            }
+            size = (size << 4) | digit;
+            digits++;
+        }
+        if (digits == 0) {
+            throw new HttpParseException(400, "Invalid chunk size");
+        }
+        return size;
+    }
+
+    private long parseDecimal(int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = head[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (head[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int start, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (head[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean equalsIgnoreCase(byte[] data, int start, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            int a = data[start + i];
+            int b = value.charAt(i);
+            if (a != b && toLowerAscii(a) != toLowerAscii(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerAscii(int c) {
+        return c >= 'A' && c <= 'Z' ? c + 32 : c;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte[] ensureCapacity(byte[] array, int capacity) {
+        return array.length >= capacity ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+
+    public static class HttpParseException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public HttpParseException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
@@ -1,23 +1,38 @@
 package http.httpdiff;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 public class HttpResponse {
     private final static String NEW_LINE = "\r\n";
 
-    private final Map<String, String> headers = new HashMap<>();
-    private String body = "";
+    private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final HttpHeaders headers = new HttpHeaders();
+    // Тело хранится уже закодированным: длина считается один раз, а при отправке
+    // буфер передаётся в канал без копирования (см. HttpResponseWriter)
+    private ByteBuffer body = EMPTY_BODY;
+    private StreamingBody streamingBody;
     private int statusCode = 200;
     private String status = "Ok";
 
     public HttpResponse() {
         this.headers.put(HttpHeader.SERVER, "Web-Server");
-        this.headers.put(HttpHeader.CONNECTION, "Close");
+        this.headers.put(HttpHeader.CONTENT_LENGTH, "0");
     }
 
+    /**
+     * Устанавливает заголовок; Set-Cookie может повторяться, поэтому добавляется к существующим
+     */
     public void addHeader(String key, String value) {
-        this.headers.put(key, value);
+        if (HttpHeader.SET_COOKIE.equalsIgnoreCase(key)) {
+            this.headers.add(key, value);
+        } else {
+            this.headers.put(key, value);
+        }
     }
 
     public void addHeaders(Map<String, String> headers) {
@@ -33,34 +48,73 @@ public class HttpResponse {
                 .append(status)
                 .append(NEW_LINE);
 
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            builder.append(entry.getKey())
-                    .append(": ")
-                    .append(entry.getValue())
-                    .append(NEW_LINE);
-        }
+        headers.forEachValue((name, value) -> builder.append(name)
+                .append(": ")
+                .append(value)
+                .append(NEW_LINE));
 
         return builder
                 .append(NEW_LINE)
-                .append(body)
+                .append(getBody())
                 .toString();
     }
 
     public byte[] getBytes() {
-        return message().getBytes();
+        return message().getBytes(StandardCharsets.UTF_8);
     }
 
-    public Map<String, String> getHeaders() {
+    public HttpHeaders getHeaders() {
         return headers;
     }
 
     public String getBody() {
-        return body;
+        return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+    }
+
+    /**
+     * Тело ответа как буфер только для чтения (позиция исходного буфера не меняется)
+     */
+    public ByteBuffer getBodyBuffer() {
+        return body.asReadOnlyBuffer();
+    }
+
+    public int getContentLength() {
+        return body.remaining();
     }
 
     public void setBody(String body) {
-        this.headers.put(HttpHeader.CONTENT_LENGTH, String.valueOf(body.length()));
+        setBody(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void setBody(byte[] body) {
+        setBody(ByteBuffer.wrap(body));
+    }
+
+    public void setBody(ByteBuffer body) {
         this.body = body;
+        this.streamingBody = null;
+        this.headers.remove(HttpHeader.TRANSFER_ENCODING);
+        this.headers.put(HttpHeader.CONTENT_LENGTH, String.valueOf(body.remaining()));
+    }
+
+    /**
+     * Тело, которое пишется в сокет по мере формирования (Transfer-Encoding: chunked).
+     * Вызывается сервером уже после отправки заголовков, поэтому статус и
+     * заголовки нужно выставить заранее; ошибка внутри writeTo обрывает соединение.
+     */
+    public void setStreamingBody(StreamingBody streamingBody) {
+        this.body = EMPTY_BODY;
+        this.streamingBody = streamingBody;
+        this.headers.remove(HttpHeader.CONTENT_LENGTH);
+        this.headers.put(HttpHeader.TRANSFER_ENCODING, "chunked");
+    }
+
+    public StreamingBody getStreamingBody() {
+        return streamingBody;
+    }
+
+    public boolean isStreaming() {
+        return streamingBody != null;
     }
 
     public int getStatusCode() {
@@ -78,4 +132,8 @@ public class HttpResponse {
     public void setStatus(String status) {
         this.status = status;
     }
+
+    public interface StreamingBody {
+        void writeTo(OutputStream out) throws IOException;
+    }
 }
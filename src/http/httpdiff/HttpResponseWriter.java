@@ -0,0 +1,129 @@
+package http.httpdiff;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Сериализует HttpResponse для gathering-записи в канал: стартовая строка и
+ * заголовки кодируются прямо в direct-буфер из пула, тело отдаётся отдельным
+ * буфером без копирования. Результат encode() передаётся в
+ * AsynchronousSocketChannel.write(ByteBuffer[], ...), после записи буферы
+ * возвращаются в пул через release().
+ */
+public class HttpResponseWriter {
+    private static final int HEAD_BUFFER_SIZE = 8192;
+    private static final byte[] HTTP_VERSION = "HTTP/1.1 ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADER_SEPARATOR = {':', ' '};
+    private static final byte[] NEW_LINE = {'\r', '\n'};
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int maxPooled;
+
+    public HttpResponseWriter(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Возвращает {заголовки, тело}; тело - только для чтения, длина уже посчитана в setBody()
+     */
+    public ByteBuffer[] encode(HttpResponse response) {
+        return new ByteBuffer[]{encodeHead(response), response.getBodyBuffer()};
+    }
+
+    public ByteBuffer encodeHead(HttpResponse response) {
+        ByteBuffer head = acquire();
+        try {
+            writeHead(head, response);
+        } catch (BufferOverflowException e) {
+            // Заголовки не влезли в буфер из пула (огромные cookie и т.п.) - разовый буфер
+            release(head);
+            head = ByteBuffer.allocate(estimateHeadSize(response));
+            writeHead(head, response);
+        }
+        head.flip();
+        return head;
+    }
+
+    /**
+     * Индекс первого недописанного буфера, начиная с from; buffers.length - всё записано.
+     * Короткая запись может оборвать любой буфер, в том числе заголовки при пустом теле
+     */
+    public static int firstRemaining(ByteBuffer[] buffers, int from) {
+        while (from < buffers.length && !buffers[from].hasRemaining()) {
+            from++;
+        }
+        return from;
+    }
+
+    public void release(ByteBuffer[] buffers) {
+        release(buffers[0]);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == HEAD_BUFFER_SIZE && pooled.get() < maxPooled) {
+            buffer.clear();
+            pool.offer(buffer);
+            pooled.incrementAndGet();
+        }
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(HEAD_BUFFER_SIZE);
+    }
+
+    private static void writeHead(ByteBuffer head, HttpResponse response) {
+        head.put(HTTP_VERSION);
+        putInt(head, response.getStatusCode());
+        head.put((byte) ' ');
+        putString(head, response.getStatus());
+        head.put(NEW_LINE);
+
+        response.getHeaders().forEachValue((name, value) -> {
+            putString(head, name);
+            head.put(HEADER_SEPARATOR);
+            putString(head, value);
+            head.put(NEW_LINE);
+        });
+
+        head.put(NEW_LINE);
+    }
+
+    private static int estimateHeadSize(HttpResponse response) {
+        int[] size = {HTTP_VERSION.length + response.getStatus().length() * 3 + 16};
+        response.getHeaders().forEachValue((name, value) ->
+                size[0] += (name.length() + value.length()) * 3 + 4);
+        return size[0];
+    }
+
+    private static void putInt(ByteBuffer buffer, int value) {
+        if (value >= 100 && value <= 999) {
+            buffer.put((byte) ('0' + value / 100));
+            buffer.put((byte) ('0' + value / 10 % 10));
+            buffer.put((byte) ('0' + value % 10));
+        } else {
+            putString(buffer, Integer.toString(value));
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Не-ASCII встречается редко (например, в Set-Cookie) - кодируем остаток целиком
+                buffer.put(value.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put((byte) c);
+        }
+    }
+}
@@ -5,7 +5,6 @@ import http.httpdiff.HttpRequest;
 import http.httpdiff.HttpResponse;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -47,8 +46,9 @@ public class StaticFileHandler implements HttpHandler {
         response.addHeader("Content-Type", contentType);
         response.addHeader("Charset", "UTF-8");
 
-        byte[] fileBytes = Files.readAllBytes(filePath);
-        return new String(fileBytes, StandardCharsets.UTF_8);
+        // Файл отдаётся как есть, без перекодирования в строку (картинки и т.п.)
+        response.setBody(Files.readAllBytes(filePath));
+        return null;
     }
 
     private String getContentType(Path path) {
@@ -0,0 +1,151 @@
+package json;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Потоковая запись JSON: в отличие от JsonBuilder не собирает документ в строку,
+ * а сразу пишет его в Writer, так что большие списки (история сообщений)
+ * формируются с ограниченной памятью.
+ * Запятые между элементами расставляются автоматически.
+ */
+public class JsonStreamWriter implements Closeable, Flushable {
+    private static final int MAX_DEPTH = 64;
+
+    private final Writer writer;
+    // Для каждого уровня вложенности: был ли уже записан элемент
+    private final boolean[] hasElements = new boolean[MAX_DEPTH];
+    private int depth = 0;
+    private boolean afterName = false;
+
+    public JsonStreamWriter(Writer writer) {
+        this.writer = writer;
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonStreamWriter name(String name) throws IOException {
+        separator();
+        writeString(name);
+        writer.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(Object value) throws IOException {
+        if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey())).value(entry.getValue());
+            }
+            return endObject();
+        } else if (value instanceof List) {
+            beginArray();
+            for (Object item : (List<?>) value) {
+                value(item);
+            }
+            return endArray();
+        }
+
+        separator();
+        if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writer.write(value.toString());
+        } else if (value == null) {
+            writer.write("null");
+        } else {
+            writeString(value.toString());
+        }
+        return this;
+    }
+
+    public JsonStreamWriter field(String name, Object value) throws IOException {
+        return name(name).value(value);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private JsonStreamWriter open(char bracket) throws IOException {
+        separator();
+        if (depth == MAX_DEPTH) {
+            throw new IOException("JSON nesting is too deep");
+        }
+        writer.write(bracket);
+        hasElements[depth++] = false;
+        return this;
+    }
+
+    private JsonStreamWriter close(char bracket) throws IOException {
+        if (depth == 0) {
+            throw new IOException("Unbalanced JSON: nothing to close");
+        }
+        depth--;
+        writer.write(bracket);
+        return this;
+    }
+
+    private void separator() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (hasElements[depth - 1]) {
+                writer.write(',');
+            }
+            hasElements[depth - 1] = true;
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writer.write('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> writer.write("\\\"");
+                case '\\' -> writer.write("\\\\");
+                case '\b' -> writer.write("\\b");
+                case '\f' -> writer.write("\\f");
+                case '\n' -> writer.write("\\n");
+                case '\r' -> writer.write("\\r");
+                case '\t' -> writer.write("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                }
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,114 @@
+package websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Двоичный подпротокол чата chat.binary.v1 (Sec-WebSocket-Protocol).
+ * Каждое событие - один двоичный кадр: байт типа и поля фиксированной
+ * длины в big-endian; строка в конце события занимает остаток кадра,
+ * строка в середине предваряется длиной u16. Текст - UTF-8.
+ *
+ * Клиент -> сервер:
+ *   AUTH    0x01  token
+ *   JOIN    0x02  i32 chat_id
+ *   SEND    0x03  i32 chat_id, text
+ *   TYPING  0x04  i32 chat_id
+ * Сервер -> клиент:
+ *   AUTH_OK      0x81  i32 user_id, username
+ *   JOINED       0x82  i32 chat_id
+ *   NEW_MESSAGE  0x83  i32 message_id, i32 chat_id, i32 sender_id, i64 sent_at (мс),
+ *                      u16 длина имени, sender_name, text
+ *   ACK          0x84  i32 message_id
+ *   TYPING       0x85  i32 chat_id, i32 user_id
+ *   ERROR        0xFF  u16 code, message
+ */
+public final class BinaryProtocol {
+    public static final String NAME = "chat.binary.v1";
+
+    public static final byte AUTH = 0x01;
+    public static final byte JOIN = 0x02;
+    public static final byte SEND = 0x03;
+    public static final byte TYPING = 0x04;
+
+    public static final byte AUTH_OK = (byte) 0x81;
+    public static final byte JOINED = (byte) 0x82;
+    public static final byte NEW_MESSAGE = (byte) 0x83;
+    public static final byte ACK = (byte) 0x84;
+    public static final byte TYPING_EVENT = (byte) 0x85;
+    public static final byte ERROR = (byte) 0xFF;
+
+    public static final int ERROR_BAD_REQUEST = 400;
+    public static final int ERROR_NOT_AUTHENTICATED = 401;
+    public static final int ERROR_ACCESS_DENIED = 403;
+    public static final int ERROR_SAVE_FAILED = 500;
+    public static final int ERROR_BUSY = 503;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * true, если клиент предложил chat.binary.v1 в Sec-WebSocket-Protocol
+     */
+    public static boolean isOffered(String protocolsHeader) {
+        if (protocolsHeader == null) {
+            return false;
+        }
+        for (String protocol : protocolsHeader.split(",")) {
+            if (protocol.trim().equals(NAME)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static byte[] authOk(int userId, String username) {
+        byte[] name = utf8(username);
+        return ByteBuffer.allocate(1 + 4 + name.length)
+                .put(AUTH_OK).putInt(userId).put(name)
+                .array();
+    }
+
+    public static byte[] joined(int chatId) {
+        return ByteBuffer.allocate(1 + 4).put(JOINED).putInt(chatId).array();
+    }
+
+    public static byte[] newMessage(int messageId, int chatId, int senderId, long sentAt, String senderName, String text) {
+        byte[] name = utf8(senderName);
+        byte[] body = utf8(text);
+        int nameLength = Math.min(name.length, 0xFFFF);
+        return ByteBuffer.allocate(1 + 4 + 4 + 4 + 8 + 2 + nameLength + body.length)
+                .put(NEW_MESSAGE).putInt(messageId).putInt(chatId).putInt(senderId).putLong(sentAt)
+                .putShort((short) nameLength).put(name, 0, nameLength).put(body)
+                .array();
+    }
+
+    public static byte[] ack(int messageId) {
+        return ByteBuffer.allocate(1 + 4).put(ACK).putInt(messageId).array();
+    }
+
+    public static byte[] typing(int chatId, int userId) {
+        return ByteBuffer.allocate(1 + 4 + 4).put(TYPING_EVENT).putInt(chatId).putInt(userId).array();
+    }
+
+    public static byte[] error(int code, String message) {
+        byte[] text = utf8(message);
+        return ByteBuffer.allocate(1 + 2 + text.length)
+                .put(ERROR).putShort((short) code).put(text)
+                .array();
+    }
+
+    /**
+     * Строка из оставшейся части события
+     */
+    public static String remainingString(ByteBuffer event) {
+        String value = new String(event.array(), event.arrayOffset() + event.position(), event.remaining(),
+                StandardCharsets.UTF_8);
+        event.position(event.limit());
+        return value;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,62 @@
+package websocket;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct-память для кадров рассылки, нарезаемая из крупных блоков.
+ * allocateDirect намного дороже выделения в куче и освобождается только
+ * через Cleaner после GC, поэтому direct-память берётся блоками по slabSize,
+ * а кадры получают их срезы подряд. Заполненный блок заменяется новым;
+ * старый освобождается, когда отправлены все кадры из него.
+ * Кадры больше slabSize / 8 в блок не кладутся (allocate возвращает null).
+ */
+public class FrameSlab {
+    private final int slabSize;
+    private final int maxFrameSize;
+
+    // Защищено this
+    private ByteBuffer slab;
+
+    private final AtomicLong slabs = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+
+    public FrameSlab(int slabSize) {
+        this.slabSize = slabSize;
+        this.maxFrameSize = slabSize / 8;
+    }
+
+    /**
+     * Буфер ровно на size байт в direct-памяти; null - кадр слишком велик для блока
+     */
+    public ByteBuffer allocate(int size) {
+        if (size > maxFrameSize) {
+            oversized.incrementAndGet();
+            return null;
+        }
+        ByteBuffer frame;
+        synchronized (this) {
+            if (slab == null || slab.remaining() < size) {
+                slab = ByteBuffer.allocateDirect(slabSize);
+                slabs.incrementAndGet();
+            }
+            frame = slab.slice();
+            frame.limit(size);
+            slab.position(slab.position() + size);
+        }
+        frames.incrementAndGet();
+        return frame;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("slab_size", slabSize);
+        metrics.put("slabs", slabs.get());
+        metrics.put("frames", frames.get());
+        metrics.put("oversized", oversized.get());
+        return metrics;
+    }
+}
@@ -0,0 +1,167 @@
+package websocket;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Проверка живости WebSocket-подключений на колесе таймеров.
+ * Колесо из pingInterval / tick ячеек поворачивается раз в tick; подключение
+ * лежит в одной ячейке и проверяется раз за оборот, поэтому за тик
+ * обрабатывается только 1/slots всех подключений, без обхода и сортировки.
+ * Любые входящие данные (в том числе Pong) отмечаются через Handle#touch.
+ * Если за интервал активности не было, вызывается ping; если после этого
+ * maxMissedPongs интервалов подряд клиент молчит - timeout.
+ * Отменённые подключения удаляются из ячейки при следующей проверке.
+ */
+public class HeartbeatWheel {
+    private final long tickMs;
+    private final int maxMissedPongs;
+    private final List<Handle>[] slots;
+    // Новые подключения регистрируются из любых потоков, в колесо их переносит поток тика
+    private final Queue<Handle> incoming = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService ticker;
+    private int cursor;
+
+    private final AtomicInteger tracked = new AtomicInteger();
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Подключение в колесе; поля без volatile меняет только поток тика
+     */
+    public class Handle {
+        private final Runnable ping;
+        private final Runnable timeout;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private long lastCheck = lastActivity;
+        private int silentIntervals;
+
+        private Handle(Runnable ping, Runnable timeout) {
+            this.ping = ping;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Отмечает входящие данные от клиента
+         */
+        public void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                tracked.decrementAndGet();
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HeartbeatWheel(long pingIntervalMs, long tickMs, int maxMissedPongs) {
+        this.tickMs = tickMs;
+        this.maxMissedPongs = maxMissedPongs;
+        int count = (int) Math.max(1, (pingIntervalMs + tickMs - 1) / tickMs);
+        this.slots = new List[count];
+        for (int i = 0; i < count; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "websocket-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * Ставит подключение на проверку; первая - через полный интервал
+     */
+    public Handle register(Runnable ping, Runnable timeout) {
+        Handle handle = new Handle(ping, timeout);
+        tracked.incrementAndGet();
+        incoming.add(handle);
+        return handle;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("tracked", tracked.get());
+        metrics.put("ping_interval_ms", slots.length * tickMs);
+        metrics.put("max_missed_pongs", maxMissedPongs);
+        metrics.put("pings", pings.get());
+        metrics.put("timeouts", timeouts.get());
+        return metrics;
+    }
+
+    private void tick() {
+        // Текущая ячейка будет снова проверена через полный оборот - туда и новые подключения
+        List<Handle> due = slots[cursor];
+        List<Handle> next = new ArrayList<>(due.size());
+        slots[cursor] = next;
+        cursor = (cursor + 1) % slots.length;
+
+        Handle handle;
+        while ((handle = incoming.poll()) != null) {
+            next.add(handle);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Handle entry : due) {
+            try {
+                if (!entry.cancelled.get() && check(entry, now)) {
+                    next.add(entry);
+                }
+            } catch (RuntimeException e) {
+                // Исключение остановило бы scheduleAtFixedRate и потеряло остаток ячейки
+                e.printStackTrace();
+                next.add(entry);
+            }
+        }
+    }
+
+    /**
+     * false - подключение больше не проверяется
+     */
+    private boolean check(Handle entry, long now) {
+        if (entry.lastActivity > entry.lastCheck) {
+            entry.silentIntervals = 0;
+        } else {
+            entry.silentIntervals++;
+        }
+        entry.lastCheck = now;
+
+        // Первый тихий интервал - просто простой, дальше - пропущенные Pong
+        if (entry.silentIntervals > maxMissedPongs) {
+            timeouts.incrementAndGet();
+            entry.cancel();
+            entry.timeout.run();
+            return false;
+        }
+        if (entry.silentIntervals > 0) {
+            pings.incrementAndGet();
+            entry.ping.run();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,186 @@
+package websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Очередь исходящих кадров одного WebSocket-подключения.
+ * AsynchronousSocketChannel допускает только одну незавершённую запись,
+ * поэтому кадры ставятся в очередь, а запись идёт последовательно через
+ * CompletionHandler: следующая начинается после завершения предыдущей,
+ * недописанный остаток дописывается. Накопившиеся кадры уходят одной
+ * gathering-записью (до MAX_GATHER буферов).
+ * Если объём неотправленных данных превышает highWaterMark или запись
+ * не завершилась за writeTimeoutMs, клиент считается медленным: очередь
+ * закрывается и вызывается onClose (так же и при ошибке записи).
+ */
+public class OutboundQueue {
+    private static final int MAX_GATHER = 64;
+
+    private final AsynchronousSocketChannel channel;
+    private final long highWaterMark;
+    private final long writeTimeoutMs;
+    private final Runnable onClose;
+
+    // Всё ниже защищено this
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private long pendingBytes;
+    private boolean writing;
+    private boolean closed;
+    // Закрыть подключение, как только очередь опустеет (после кадра Close)
+    private boolean closeWhenDrained;
+
+    private final CompletionHandler<Long, ByteBuffer[]> writeHandler = new CompletionHandler<Long, ByteBuffer[]>() {
+        @Override
+        public void completed(Long written, ByteBuffer[] batch) {
+            int offset = 0;
+            while (offset < batch.length && !batch[offset].hasRemaining()) {
+                offset++;
+            }
+
+            ByteBuffer[] next;
+            synchronized (OutboundQueue.this) {
+                pendingBytes -= written;
+                if (closed) {
+                    return;
+                }
+                if (offset < batch.length) {
+                    // Частичная запись - дописываем остаток того же пакета
+                    next = null;
+                } else {
+                    next = takeBatch();
+                    if (next == null) {
+                        writing = false;
+                        if (!closeWhenDrained) {
+                            return;
+                        }
+                    }
+                }
+            }
+            if (next != null) {
+                write(next, 0);
+            } else if (offset < batch.length) {
+                write(batch, offset);
+            } else {
+                abort();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, ByteBuffer[] batch) {
+            abort();
+        }
+    };
+
+    public OutboundQueue(AsynchronousSocketChannel channel, long highWaterMark, long writeTimeoutMs, Runnable onClose) {
+        this.channel = channel;
+        this.highWaterMark = highWaterMark;
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Ставит кадр в очередь; буфер после этого не изменять.
+     * false - подключение закрыто или переполнено и кадр отброшен
+     */
+    public boolean enqueue(ByteBuffer frame) {
+        ByteBuffer[] batch;
+        synchronized (this) {
+            if (closed || closeWhenDrained) {
+                return false;
+            }
+            if (pendingBytes + frame.remaining() > highWaterMark) {
+                System.err.println("WebSocket client is too slow (" + pendingBytes + " bytes pending), disconnecting");
+                batch = null;
+            } else {
+                pending.add(frame);
+                pendingBytes += frame.remaining();
+                if (writing) {
+                    return true;
+                }
+                writing = true;
+                batch = takeBatch();
+            }
+        }
+
+        if (batch == null) {
+            abort();
+            return false;
+        }
+        write(batch, 0);
+        return true;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized int getPendingFrames() {
+        return pending.size();
+    }
+
+    /**
+     * Ставит последний кадр (обычно Close) и закрывает подключение после его отправки
+     */
+    public void enqueueAndClose(ByteBuffer frame) {
+        if (enqueue(frame)) {
+            boolean drained;
+            synchronized (this) {
+                closeWhenDrained = true;
+                drained = !writing;
+            }
+            if (drained) {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Отбрасывает неотправленные кадры; вызывается владельцем при закрытии подключения
+     */
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+    }
+
+    /**
+     * Закрывает очередь из-за ошибки записи или медленного клиента и сообщает об этом владельцу (один раз)
+     */
+    private void abort() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.clear();
+        }
+        onClose.run();
+    }
+
+    /**
+     * Забирает из очереди до MAX_GATHER кадров для одной записи; вызывается под this
+     */
+    private ByteBuffer[] takeBatch() {
+        int count = Math.min(pending.size(), MAX_GATHER);
+        if (count == 0) {
+            return null;
+        }
+        ByteBuffer[] batch = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            batch[i] = pending.poll();
+        }
+        return batch;
+    }
+
+    private void write(ByteBuffer[] batch, int offset) {
+        try {
+            channel.write(batch, offset, batch.length - offset, writeTimeoutMs, TimeUnit.MILLISECONDS, batch, writeHandler);
+        } catch (RuntimeException e) {
+            // Канал уже закрыт или запись невозможна
+            abort();
+        }
+    }
+}
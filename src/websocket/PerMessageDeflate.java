@@ -0,0 +1,246 @@
+package websocket;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Расширение permessage-deflate (RFC 7692) для одного подключения.
+ * Сообщение сжимается raw deflate с SYNC_FLUSH, завершающие 00 00 FF FF
+ * отрезаются; при распаковке они дописываются обратно.
+ * Без context takeover словарь между сообщениями не сохраняется - тогда
+ * Deflater/Inflater берутся из общего пула на время одного сообщения,
+ * а сжатый кадр одинаков для всех клиентов и может рассылаться общим.
+ * С context takeover подключение держит собственный экземпляр.
+ * Java не умеет уменьшать окно deflate, поэтому предложения
+ * с server_max_window_bits меньше 15 отклоняются.
+ */
+public class PerMessageDeflate {
+    public static final String EXTENSION_NAME = "permessage-deflate";
+
+    private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    private static final int MAX_POOLED = 32;
+
+    private static final Queue<Deflater> deflaterPool = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaterPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private static final AtomicInteger pooledInflaters = new AtomicInteger();
+
+    private final boolean serverNoContextTakeover;
+    private final boolean clientNoContextTakeover;
+    private final int minSize;
+
+    // Собственные экземпляры при context takeover; защищены this
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean closed;
+
+    private PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover, int minSize) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Выбирает первое приемлемое предложение permessage-deflate из заголовков
+     * Sec-WebSocket-Extensions; null - расширение не используется
+     */
+    public static PerMessageDeflate negotiate(String extensionsHeader, boolean forceServerNoContextTakeover, int minSize) {
+        if (extensionsHeader == null) {
+            return null;
+        }
+        for (String offer : extensionsHeader.split(",")) {
+            String[] params = offer.split(";");
+            if (!params[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+                continue;
+            }
+
+            boolean serverNoContext = forceServerNoContextTakeover;
+            boolean clientNoContext = false;
+            boolean acceptable = true;
+            for (int i = 1; i < params.length && acceptable; i++) {
+                String param = params[i].trim();
+                String name = param;
+                String value = null;
+                int eq = param.indexOf('=');
+                if (eq >= 0) {
+                    name = param.substring(0, eq).trim();
+                    value = param.substring(eq + 1).trim().replace("\"", "");
+                }
+
+                switch (name) {
+                    case "server_no_context_takeover":
+                        serverNoContext = true;
+                        break;
+                    case "client_no_context_takeover":
+                        clientNoContext = true;
+                        break;
+                    case "server_max_window_bits":
+                        acceptable = "15".equals(value);
+                        break;
+                    case "client_max_window_bits":
+                        // Распаковка с окном 15 подходит для любого окна клиента
+                        break;
+                    default:
+                        acceptable = false;
+                }
+            }
+            if (acceptable) {
+                return new PerMessageDeflate(serverNoContext, clientNoContext, minSize);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Значение Sec-WebSocket-Extensions для ответа на handshake
+     */
+    public String getResponseHeader() {
+        StringBuilder header = new StringBuilder(EXTENSION_NAME);
+        if (serverNoContextTakeover) {
+            header.append("; server_no_context_takeover");
+        }
+        if (clientNoContextTakeover) {
+            header.append("; client_no_context_takeover");
+        }
+        return header.toString();
+    }
+
+    public boolean isServerNoContextTakeover() {
+        return serverNoContextTakeover;
+    }
+
+    public boolean shouldCompress(int payloadLength) {
+        return payloadLength >= minSize;
+    }
+
+    /**
+     * Сжимает исходящее сообщение. С context takeover вызывающий код должен
+     * отправлять кадры в том же порядке, в каком они сжимались (синхронизация на этом объекте)
+     */
+    public synchronized byte[] compress(byte[] payload) {
+        if (serverNoContextTakeover || closed) {
+            return compressWithoutContext(payload);
+        }
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        return deflate(deflater, payload);
+    }
+
+    /**
+     * Сжатие без общего контекста - результат годится для любого клиента с server_no_context_takeover
+     */
+    public static byte[] compressWithoutContext(byte[] payload) {
+        Deflater pooled = deflaterPool.poll();
+        if (pooled != null) {
+            pooledDeflaters.decrementAndGet();
+        } else {
+            pooled = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            return deflate(pooled, payload);
+        } finally {
+            pooled.reset();
+            if (pooledDeflaters.incrementAndGet() <= MAX_POOLED) {
+                deflaterPool.offer(pooled);
+            } else {
+                pooledDeflaters.decrementAndGet();
+                pooled.end();
+            }
+        }
+    }
+
+    /**
+     * Распаковывает входящее сообщение; результат больше maxSize считается ошибкой
+     */
+    public synchronized byte[] decompress(byte[] data, int offset, int length, int maxSize)
+            throws DataFormatException, WebSocketFrameDecoder.ProtocolException {
+        if (closed) {
+            throw new DataFormatException("Connection is closed");
+        }
+        if (!clientNoContextTakeover) {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            return inflate(inflater, data, offset, length, maxSize);
+        }
+
+        Inflater pooled = inflaterPool.poll();
+        if (pooled != null) {
+            pooledInflaters.decrementAndGet();
+        } else {
+            pooled = new Inflater(true);
+        }
+        try {
+            return inflate(pooled, data, offset, length, maxSize);
+        } finally {
+            pooled.reset();
+            if (pooledInflaters.incrementAndGet() <= MAX_POOLED) {
+                inflaterPool.offer(pooled);
+            } else {
+                pooledInflaters.decrementAndGet();
+                pooled.end();
+            }
+        }
+    }
+
+    /**
+     * Освобождает собственные Deflater/Inflater подключения
+     */
+    public synchronized void close() {
+        closed = true;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] payload) {
+        deflater.setInput(payload);
+        byte[] out = new byte[Math.max(64, payload.length / 2 + 16)];
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            // Буфер заполнен целиком - сброс мог не закончиться
+            if (length < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        // SYNC_FLUSH всегда заканчивается пустым блоком 00 00 FF FF
+        return Arrays.copyOf(out, length - TAIL.length);
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] data, int offset, int length, int maxSize)
+            throws DataFormatException, WebSocketFrameDecoder.ProtocolException {
+        byte[] input = Arrays.copyOfRange(data, offset, offset + length + TAIL.length);
+        System.arraycopy(TAIL, 0, input, length, TAIL.length);
+        inflater.setInput(input);
+
+        byte[] out = new byte[Math.min(Math.max(64, length * 4), maxSize + 1)];
+        int size = 0;
+        while (true) {
+            int count = inflater.inflate(out, size, out.length - size);
+            size += count;
+            if (size > maxSize) {
+                throw new WebSocketFrameDecoder.ProtocolException(WebSocketFrameDecoder.CLOSE_TOO_BIG,
+                        "Decompressed message exceeds " + maxSize + " bytes");
+            }
+            if (size == out.length) {
+                out = Arrays.copyOf(out, Math.min(out.length * 2, maxSize + 1));
+            } else if (count == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                break;
+            }
+        }
+        return Arrays.copyOf(out, size);
+    }
+}
@@ -0,0 +1,227 @@
+package websocket;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Выполнение команд WebSocket-подключений вне потоков ввода-вывода.
+ * Потоки группы каналов только разбирают кадры и ставят команды в очередь
+ * подключения (Session); блокирующая работа (JDBC и т.п.) идёт в общем пуле
+ * из workerThreads потоков. Команды одного подключения выполняются строго
+ * по порядку и никогда параллельно. За один заход выполняется не больше
+ * BATCH команд, после чего подключение уступает поток остальным.
+ * Если в очереди подключения накопилось maxPending команд, чтение из сокета
+ * приостанавливается (Session#pauseIfFull) и возобновляется, когда очередь
+ * разобрана наполовину.
+ */
+public class SessionExecutor {
+    private static final int BATCH = 16;
+
+    private final int workerThreads;
+    private final int maxPending;
+    private final ExecutorService workers;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger scheduledSessions = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong readPauses = new AtomicLong();
+
+    public SessionExecutor(int workerThreads, int maxPending) {
+        this.workerThreads = workerThreads;
+        this.maxPending = maxPending;
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = new Thread(r, "websocket-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Session newSession() {
+        sessions.incrementAndGet();
+        return new Session();
+    }
+
+    /**
+     * Снимок метрик: глубина очередей, занятость пула, приостановки чтения
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("worker_threads", workerThreads);
+        metrics.put("sessions", sessions.get());
+        metrics.put("busy_sessions", scheduledSessions.get());
+        metrics.put("queued_commands", queued.get());
+        metrics.put("max_session_queue_depth", maxQueueDepth.get());
+        metrics.put("max_pending_per_session", maxPending);
+        metrics.put("executed", executed.get());
+        metrics.put("failed", failed.get());
+        metrics.put("read_pauses", readPauses.get());
+        return metrics;
+    }
+
+    /**
+     * Дожидается выполнения уже поставленных команд и останавливает пул.
+     * Пока очереди не пусты, пул не закрывается: иначе подключение, уступившее
+     * поток после BATCH команд, не смогло бы продолжить. false - не успели за timeoutMs
+     */
+    public boolean shutdown(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (scheduledSessions.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        workers.shutdown();
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        return workers.awaitTermination(remaining, TimeUnit.NANOSECONDS) && scheduledSessions.get() == 0;
+    }
+
+    /**
+     * Очередь команд одного подключения
+     */
+    public class Session {
+        // Всё ниже защищено this
+        private final ArrayDeque<Runnable> commands = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean closed;
+        // Продолжение чтения из сокета, пока оно приостановлено
+        private Runnable resumeReading;
+
+        private Session() {
+        }
+
+        /**
+         * Ставит команду в очередь; после close() команды отбрасываются
+         */
+        public void execute(Runnable command) {
+            int depth;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                commands.add(command);
+                depth = commands.size();
+                if (scheduled) {
+                    command = null;
+                } else {
+                    scheduled = true;
+                }
+            }
+            queued.incrementAndGet();
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+            if (command != null) {
+                scheduledSessions.incrementAndGet();
+                submit();
+            }
+        }
+
+        /**
+         * true - очередь заполнена: вызывающий не должен читать дальше,
+         * resume будет вызван из рабочего потока, когда очередь разберётся
+         */
+        public boolean pauseIfFull(Runnable resume) {
+            synchronized (this) {
+                if (closed || commands.size() < maxPending) {
+                    return false;
+                }
+                resumeReading = resume;
+            }
+            readPauses.incrementAndGet();
+            return true;
+        }
+
+        public synchronized int size() {
+            return commands.size();
+        }
+
+        /**
+         * Отбрасывает невыполненные команды; выполняемая сейчас команда дорабатывает
+         */
+        public void close() {
+            int dropped;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                dropped = commands.size();
+                commands.clear();
+                resumeReading = null;
+            }
+            queued.addAndGet(-dropped);
+            sessions.decrementAndGet();
+        }
+
+        private void submit() {
+            try {
+                workers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Пул остановлен - сервер завершает работу
+                synchronized (this) {
+                    scheduled = false;
+                }
+                scheduledSessions.decrementAndGet();
+                close();
+            }
+        }
+
+        private void drain() {
+            for (int i = 0; i < BATCH; i++) {
+                Runnable command;
+                synchronized (this) {
+                    command = commands.poll();
+                    if (command == null) {
+                        scheduled = false;
+                        scheduledSessions.decrementAndGet();
+                        return;
+                    }
+                }
+                queued.decrementAndGet();
+
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    e.printStackTrace();
+                }
+                executed.incrementAndGet();
+                resumeIfDrained();
+            }
+
+            synchronized (this) {
+                if (commands.isEmpty()) {
+                    scheduled = false;
+                    scheduledSessions.decrementAndGet();
+                    return;
+                }
+            }
+            // Остальные команды - в конец очереди пула, чтобы не задерживать другие подключения
+            submit();
+        }
+
+        private void resumeIfDrained() {
+            Runnable resume;
+            synchronized (this) {
+                if (resumeReading == null || commands.size() > maxPending / 2) {
+                    return;
+                }
+                resume = resumeReading;
+                resumeReading = null;
+            }
+            try {
+                resume.run();
+            } catch (RuntimeException e) {
+                // Канал уже закрыт - обработчик чтения сам освободит подключение
+                System.err.println("Failed to resume WebSocket read: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package websocket;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Потоковый разбор кадров WebSocket (RFC 6455) от клиента.
+ * Данные подаются кусками в том виде, в каком пришли из сокета: кадр может
+ * быть разрезан между чтениями, а одно чтение может содержать несколько
+ * кадров. Фрагментированные сообщения (opcode 0) собираются целиком,
+ * управляющие кадры между фрагментами обрабатываются сразу.
+ * Размер сообщения ограничен maxMessageSize; нарушения протокола
+ * приводят к ProtocolException с кодом закрытия.
+ * Если согласовано permessage-deflate, сообщения с RSV1 в первом кадре
+ * распаковываются после сборки.
+ * Один экземпляр на подключение, не потокобезопасен.
+ */
+public class WebSocketFrameDecoder {
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_INVALID_DATA = 1007;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    // Чтение/запись long по произвольному смещению в byte[] - для снятия маски по 8 байт
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final int INITIAL_MESSAGE_CAPACITY = 1024;
+    // Буфер сборки больше этого размера после сообщения не сохраняется
+    private static final int RETAINED_MESSAGE_CAPACITY = 64 * 1024;
+
+    public interface Listener {
+        void onText(String message);
+        void onBinary(byte[] message);
+        void onPing(byte[] payload);
+        void onPong(byte[] payload);
+        void onClose(int statusCode);
+    }
+
+    public static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public ProtocolException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    private final int maxMessageSize;
+    // null - расширение permessage-deflate не согласовано
+    private final PerMessageDeflate deflate;
+
+    // Заголовок текущего кадра (до 14 байт) - может прийти по частям
+    private final byte[] header = new byte[14];
+    private int headerLength;
+    private boolean inPayload;
+    private boolean fin;
+    private int opcode;
+    private int mask;
+    private int frameLength;
+
+    // Куда читается полезная нагрузка кадра: буфер сборки сообщения или отдельный массив управляющего кадра
+    private byte[] target;
+    private int targetOffset;
+    private int frameRead;
+
+    private byte[] message = new byte[INITIAL_MESSAGE_CAPACITY];
+    private int messageLength;
+    private int messageOpcode = -1;
+    private boolean messageCompressed;
+
+    private boolean closed;
+
+    public WebSocketFrameDecoder(int maxMessageSize, PerMessageDeflate deflate) {
+        this.maxMessageSize = maxMessageSize;
+        this.deflate = deflate;
+    }
+
+    /**
+     * Разбирает все полные кадры из input; неполный хвост запоминается до следующего вызова
+     */
+    public void decode(ByteBuffer input, Listener listener) throws ProtocolException {
+        while (!closed) {
+            if (!inPayload) {
+                if (!readHeader(input)) {
+                    return;
+                }
+                inPayload = true;
+            }
+
+            int count = Math.min(input.remaining(), frameLength - frameRead);
+            input.get(target, targetOffset + frameRead, count);
+            frameRead += count;
+            if (frameRead < frameLength) {
+                return;
+            }
+
+            inPayload = false;
+            headerLength = 0;
+            finishFrame(listener);
+        }
+    }
+
+    /**
+     * true после кадра Close - дальнейшие данные подключения не разбираются
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Снимает маску клиента: основная часть по 8 байт, остаток побайтно
+     */
+    static void unmask(byte[] data, int offset, int length, int mask) {
+        long mask64 = ((long) mask << 32) | (mask & 0xFFFFFFFFL);
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            LONGS.set(data, i, (long) LONGS.get(data, i) ^ mask64);
+        }
+        // Обработано кратное 8 число байт, поэтому маска снова начинается с первого байта
+        for (int k = 0; i < end; i++, k++) {
+            data[i] ^= (byte) (mask >>> (24 - 8 * (k & 3)));
+        }
+    }
+
+    private boolean readHeader(ByteBuffer input) throws ProtocolException {
+        int needed = 2;
+        while (true) {
+            while (headerLength < needed && input.hasRemaining()) {
+                header[headerLength++] = input.get();
+            }
+            if (headerLength < needed) {
+                return false;
+            }
+            int lengthCode = header[1] & 0x7F;
+            int full = 2 + (lengthCode == 126 ? 2 : lengthCode == 127 ? 8 : 0) + ((header[1] & 0x80) != 0 ? 4 : 0);
+            if (needed == full) {
+                break;
+            }
+            needed = full;
+        }
+
+        fin = (header[0] & 0x80) != 0;
+        opcode = header[0] & 0x0F;
+        int reserved = header[0] & 0x70;
+        // RSV1 - признак сжатия, допустим только в первом кадре сообщения с данными
+        boolean compressed = reserved == 0x40 && deflate != null
+                && (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY);
+        if (reserved != 0 && !compressed) {
+            throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Reserved bits are set");
+        }
+        if ((header[1] & 0x80) == 0) {
+            throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Client frame is not masked");
+        }
+
+        int lengthCode = header[1] & 0x7F;
+        long length;
+        int position = 2;
+        if (lengthCode == 126) {
+            length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            position = 4;
+        } else if (lengthCode == 127) {
+            length = ByteBuffer.wrap(header, 2, 8).getLong();
+            position = 10;
+        } else {
+            length = lengthCode;
+        }
+        mask = ByteBuffer.wrap(header, position, 4).getInt();
+
+        if (opcode >= OPCODE_CLOSE) {
+            if (opcode > OPCODE_PONG) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+            if (!fin || length > 125) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+            }
+            // Тело Close - пусто или начинается с двухбайтового кода (RFC 6455, 5.5.1)
+            if (opcode == OPCODE_CLOSE && length == 1) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Close frame with a 1-byte payload");
+            }
+            frameLength = (int) length;
+            target = new byte[frameLength];
+            targetOffset = 0;
+        } else {
+            if (opcode > OPCODE_BINARY) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+            if (opcode == OPCODE_CONTINUATION && messageOpcode == -1) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Continuation without a started message");
+            }
+            if (opcode != OPCODE_CONTINUATION && messageOpcode != -1) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "New message inside a fragmented one");
+            }
+            // length может быть "отрицательным" при старшем бите в 64-битной длине
+            if (length < 0 || length > maxMessageSize - messageLength) {
+                throw new ProtocolException(CLOSE_TOO_BIG, "Message exceeds " + maxMessageSize + " bytes");
+            }
+            frameLength = (int) length;
+            if (opcode != OPCODE_CONTINUATION) {
+                messageCompressed = compressed;
+            }
+            if (messageLength + frameLength > message.length) {
+                message = Arrays.copyOf(message, Math.max(messageLength + frameLength, message.length * 2));
+            }
+            target = message;
+            targetOffset = messageLength;
+        }
+        frameRead = 0;
+        return true;
+    }
+
+    private void finishFrame(Listener listener) throws ProtocolException {
+        unmask(target, targetOffset, frameLength, mask);
+
+        switch (opcode) {
+            case OPCODE_PING:
+                listener.onPing(target);
+                return;
+            case OPCODE_PONG:
+                listener.onPong(target);
+                return;
+            case OPCODE_CLOSE:
+                closed = true;
+                listener.onClose(target.length >= 2
+                        ? ((target[0] & 0xFF) << 8) | (target[1] & 0xFF)
+                        : CLOSE_NORMAL);
+                return;
+            default:
+                break;
+        }
+
+        messageLength += frameLength;
+        if (opcode != OPCODE_CONTINUATION) {
+            messageOpcode = opcode;
+        }
+        if (!fin) {
+            return;
+        }
+
+        int completedOpcode = messageOpcode;
+        byte[] data = message;
+        int dataLength = messageLength;
+        messageOpcode = -1;
+        messageLength = 0;
+
+        if (messageCompressed) {
+            try {
+                data = deflate.decompress(message, 0, dataLength, maxMessageSize);
+            } catch (DataFormatException e) {
+                throw new ProtocolException(CLOSE_INVALID_DATA, "Invalid compressed message: " + e.getMessage());
+            }
+            dataLength = data.length;
+        }
+
+        if (completedOpcode == OPCODE_TEXT) {
+            String text;
+            try {
+                text = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(data, 0, dataLength))
+                        .toString();
+            } catch (CharacterCodingException e) {
+                throw new ProtocolException(CLOSE_INVALID_DATA, "Text message is not valid UTF-8");
+            }
+            releaseLargeBuffer();
+            listener.onText(text);
+        } else {
+            byte[] binary = data == message ? Arrays.copyOf(message, dataLength) : data;
+            releaseLargeBuffer();
+            listener.onBinary(binary);
+        }
+    }
+
+    private void releaseLargeBuffer() {
+        if (message.length > RETAINED_MESSAGE_CAPACITY) {
+            message = new byte[INITIAL_MESSAGE_CAPACITY];
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import config.Config;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Обслуживание HTTP-соединений сервером через настоящий сокет: keep-alive,
+ * pipelining по порядку, закрытие по Connection: close, лимит запросов на
+ * соединение, таймаут простоя и выполнение обработчика в пуле workers
+ */
+class ServerTest {
+    private static final int MAX_REQUESTS = 3;
+    private static final int KEEP_ALIVE_TIMEOUT_MS = 1000;
+
+    private Server server;
+    private Thread serverThread;
+    private int port;
+    private final List<String> handlerThreads = new CopyOnWriteArrayList<>();
+
+    private static class Response {
+        int status;
+        final Map<String, String> headers = new HashMap<>();
+        String body;
+    }
+
+    @BeforeAll
+    static void configure() throws IOException {
+        Path conf = Files.createTempFile("server-test", ".conf");
+        Files.writeString(conf, "server.keepAliveMaxRequests=" + MAX_REQUESTS + "\n"
+                + "server.keepAliveTimeoutMs=" + KEEP_ALIVE_TIMEOUT_MS + "\n"
+                + "server.ioThreads=2\n"
+                + "server.workerThreads=4\n");
+        Config.load(conf.toString());
+        Files.delete(conf);
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new Server((request, response) -> {
+            handlerThreads.add(Thread.currentThread().getName());
+            String path = request.getPath();
+            if (path.startsWith("/slow")) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return "{\"path\":\"" + path + "\",\"body\":\"" + request.getBody() + "\"}";
+        }, "127.0.0.1", port);
+        serverThread = new Thread(server::initserver, "test-http-server");
+        serverThread.start();
+        awaitListening();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        server.shutdown(2000);
+        serverThread.join(5000);
+    }
+
+    @Test
+    void servesSeveralRequestsOnOneConnection() throws Exception {
+        try (Socket socket = connect()) {
+            for (int i = 1; i < MAX_REQUESTS; i++) {
+                send(socket, "GET /first-" + i + " HTTP/1.1\r\nHost: test\r\n\r\n");
+                Response response = readResponse(socket.getInputStream());
+                assertEquals(200, response.status);
+                assertEquals("keep-alive", response.headers.get("connection"));
+                assertEquals("{\"path\":\"/first-" + i + "\",\"body\":\"\"}", response.body);
+            }
+        }
+    }
+
+    @Test
+    void answersPipelinedRequestsInOrder() throws Exception {
+        try (Socket socket = connect()) {
+            // Первый обрабатывается дольше, но его ответ всё равно приходит первым
+            send(socket, "GET /slow HTTP/1.1\r\nHost: test\r\n\r\n"
+                    + "POST /echo HTTP/1.1\r\nHost: test\r\nContent-Length: 5\r\n\r\nhello"
+                    + "GET /last HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+
+            InputStream in = socket.getInputStream();
+            assertEquals("{\"path\":\"/slow\",\"body\":\"\"}", readResponse(in).body);
+            assertEquals("{\"path\":\"/echo\",\"body\":\"hello\"}", readResponse(in).body);
+            Response last = readResponse(in);
+            assertEquals("{\"path\":\"/last\",\"body\":\"\"}", last.body);
+            assertEquals("close", last.headers.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void closesAfterConnectionClose() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "GET /bye HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            Response response = readResponse(socket.getInputStream());
+            assertEquals("close", response.headers.get("connection"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    void closesHttp10ByDefault() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "GET /old HTTP/1.0\r\n\r\n");
+            Response response = readResponse(socket.getInputStream());
+            assertEquals(200, response.status);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    void limitsRequestsPerConnection() throws Exception {
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            for (int i = 1; i <= MAX_REQUESTS; i++) {
+                send(socket, "GET /n" + i + " HTTP/1.1\r\nHost: test\r\n\r\n");
+                Response response = readResponse(in);
+                assertEquals(i < MAX_REQUESTS ? "keep-alive" : "close", response.headers.get("connection"));
+            }
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void closesIdleConnection() throws Exception {
+        try (Socket socket = connect()) {
+            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS * 5);
+            long start = System.nanoTime();
+            assertEquals(-1, socket.getInputStream().read());
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(elapsedMs >= KEEP_ALIVE_TIMEOUT_MS / 2, "closed after " + elapsedMs + " ms");
+        }
+    }
+
+    @Test
+    void rejectsMalformedRequestAndCloses() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "POST / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n");
+            Response response = readResponse(socket.getInputStream());
+            assertEquals(400, response.status);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    void runsHandlerOnWorkerPool() throws Exception {
+        try (Socket socket = connect()) {
+            send(socket, "GET /where HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            readResponse(socket.getInputStream());
+        }
+        assertEquals(1, handlerThreads.size());
+        assertTrue(handlerThreads.get(0).startsWith("http-worker-"), handlerThreads.get(0));
+    }
+
+    private void awaitListening() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new AssertionError("server did not start on port " + port);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Читает один ответ с телом по Content-Length, не заходя в следующий
+     */
+    private static Response readResponse(InputStream in) throws IOException {
+        Response response = new Response();
+        String statusLine = readLine(in);
+        response.status = Integer.parseInt(statusLine.split(" ")[1]);
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+        int length = Integer.parseInt(response.headers.getOrDefault("content-length", "0"));
+        byte[] body = in.readNBytes(length);
+        assertEquals(length, body.length);
+        response.body = new String(body, StandardCharsets.UTF_8);
+        return response;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new SocketTimeoutException("connection closed before end of line");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
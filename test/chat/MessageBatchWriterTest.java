@@ -0,0 +1,126 @@
+package chat;
+
+import config.Config;
+import db.Database;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Write-behind с журналом при недоступной БД: Database.getConnection() всегда
+ * падает (в пуле URL без драйвера), id берутся из запаса, зарезервированного заранее
+ */
+class MessageBatchWriterTest {
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int BATCH_SIZE = 8;
+
+    private Path directory;
+    private MessageWal wal;
+    private MessageBatchWriter writer;
+    // Сколько раз запрашивался запас id
+    private final AtomicInteger reservations = new AtomicInteger();
+
+    @BeforeAll
+    static void breakDatabase() throws IOException {
+        Path conf = Files.createTempFile("db-down", ".conf");
+        Files.writeString(conf, "db.url=jdbc:unavailable:chat\ndb.pool.timeoutMs=100\n");
+        Config.load(conf.toString());
+        Files.delete(conf);
+    }
+
+    @BeforeEach
+    void openWal() throws IOException {
+        directory = Files.createTempDirectory("wal-writer-test");
+        wal = new MessageWal(directory, 1024 * 1024, 1);
+        wal.recover();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        if (writer != null) {
+            writer.shutdown();
+        }
+        wal.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void acceptsMessagesWhileDatabaseIsDown() throws Exception {
+        int idBlockSize = 1000;
+        writer = newWriter(idBlockSize, 2000);
+        assertThrows(SQLException.class, Database::getConnection);
+
+        int count = 500;
+        int previousId = 0;
+        for (int i = 0; i < count; i++) {
+            MessageStore.StoredMessage message = writer.submit(1, 2, "message " + i);
+            // Подтверждение отправителю - запись в журнал, не в БД
+            message.persisted().get(5, TimeUnit.SECONDS);
+            assertTrue(message.getMessageId() > previousId);
+            previousId = message.getMessageId();
+        }
+
+        assertEquals(0, writer.getRejected());
+        assertEquals(count, wal.getPendingCount());
+        assertEquals(0, writer.getWritten());
+        assertEquals(idBlockSize - count, writer.getReservedIds());
+        // Пополнение запаса пыталось обратиться к БД и не задержало отправителей
+        assertTrue(reservations.get() > 1);
+    }
+
+    @Test
+    void rejectsWhenReservedIdsRunOut() throws Exception {
+        int idBlockSize = 10;
+        writer = newWriter(idBlockSize, 300);
+
+        for (int i = 0; i < idBlockSize; i++) {
+            writer.submit(1, 2, "message " + i).persisted().get(5, TimeUnit.SECONDS);
+        }
+
+        long start = System.nanoTime();
+        assertThrows(MessageStore.StoreBusyException.class, () -> writer.submit(1, 2, "one too many"));
+        // Отказ после ожидания пополнения, а не зависание на БД
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(idBlockSize, wal.getPendingCount());
+    }
+
+    /**
+     * Первый блок id выдаётся до "сбоя", дальше запас пополняется через недоступную БД
+     */
+    private MessageBatchWriter newWriter(int idBlockSize, long offerTimeoutMs) {
+        return new MessageBatchWriter(QUEUE_CAPACITY, BATCH_SIZE, 5, offerTimeoutMs, idBlockSize,
+                batch -> batch.forEach(message -> wal.checkpoint(message.getMessageId())),
+                wal,
+                count -> {
+                    if (reservations.getAndIncrement() == 0) {
+                        int[] ids = new int[count];
+                        for (int i = 0; i < count; i++) {
+                            ids[i] = i + 1;
+                        }
+                        return ids;
+                    }
+                    try (Connection conn = Database.getConnection()) {
+                        throw new AssertionError("database is expected to be down");
+                    }
+                });
+    }
+}
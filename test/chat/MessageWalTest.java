@@ -0,0 +1,168 @@
+package chat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageWalTest {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    // [длина][CRC] + message_id, chat_id, sender_id, sent_at
+    private static final int RECORD_OVERHEAD = 8 + 20;
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("wal-test");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void recoversUncheckpointedMessagesInOrder() throws Exception {
+        MessageWal wal = new MessageWal(directory, SEGMENT_SIZE, 1);
+        wal.recover();
+        for (int id = 1; id <= 5; id++) {
+            wal.append(message(id, "сообщение " + id)).get();
+        }
+        wal.close();
+
+        MessageWal reopened = new MessageWal(directory, SEGMENT_SIZE, 1);
+        assertEquals(5, reopened.recover());
+        // Записанное в БД после восстановления повторно не отдаётся
+        reopened.checkpoint(2);
+        assertEquals(List.of(1, 3, 4), ids(reopened.readPending(3)));
+        assertEquals(List.of(5), ids(reopened.readPending(100)));
+        // Курсор дозаписи продвинулся - повторно те же записи не отдаются
+        assertTrue(reopened.readPending(100).isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    void stopsAtTornRecord() throws Exception {
+        MessageWal wal = new MessageWal(directory, SEGMENT_SIZE, 1);
+        wal.recover();
+        List<String> texts = List.of("first", "second", "third");
+        for (int i = 0; i < texts.size(); i++) {
+            wal.append(message(i + 1, texts.get(i))).get();
+        }
+        wal.close();
+
+        // Сбой посреди записи третьего сообщения: часть его текста не дошла до диска
+        long thirdOffset = 0;
+        for (int i = 0; i < 2; i++) {
+            thirdOffset += RECORD_OVERHEAD + texts.get(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        corrupt(onlySegment(), thirdOffset + RECORD_OVERHEAD + 1);
+
+        MessageWal reopened = new MessageWal(directory, SEGMENT_SIZE, 1);
+        assertEquals(2, reopened.recover());
+        List<MessageStore.StoredMessage> pending = reopened.readPending(100);
+        assertEquals(List.of(1, 2), ids(pending));
+        assertEquals("second", pending.get(1).getText());
+        assertEquals(7, pending.get(1).getChatId());
+        assertTrue(pending.get(1).persisted().isDone());
+        reopened.close();
+    }
+
+    @Test
+    void ignoresRecordWithHeaderOnly() throws Exception {
+        MessageWal wal = new MessageWal(directory, SEGMENT_SIZE, 1);
+        wal.recover();
+        wal.append(message(1, "intact")).get();
+        wal.close();
+
+        // Заголовок следующей записи записан, данные - нет (в файле нули)
+        Path segment = onlySegment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(20 + 10).putInt(0x12345678).flip();
+            channel.write(header, RECORD_OVERHEAD + "intact".length());
+        }
+
+        MessageWal reopened = new MessageWal(directory, SEGMENT_SIZE, 1);
+        assertEquals(1, reopened.recover());
+        assertEquals(List.of(1), ids(reopened.readPending(100)));
+        reopened.close();
+    }
+
+    @Test
+    void deletesSegmentOnceAllRecordsCheckpointed() throws Exception {
+        MessageWal wal = new MessageWal(directory, SEGMENT_SIZE, 1);
+        wal.recover();
+        wal.append(message(1, "a")).get();
+        wal.append(message(2, "b")).get();
+        wal.close();
+
+        MessageWal reopened = new MessageWal(directory, SEGMENT_SIZE, 1);
+        assertEquals(2, reopened.recover());
+        Path recovered = segments().get(0);
+        reopened.checkpoint(1);
+        assertTrue(Files.exists(recovered));
+        reopened.checkpoint(2);
+        assertTrue(Files.notExists(recovered));
+        assertTrue(reopened.readPending(100).isEmpty());
+        reopened.close();
+    }
+
+    private static MessageStore.StoredMessage message(int id, String text) {
+        return new MessageStore.StoredMessage(id, 7, 42, text, new Timestamp(1_700_000_000_000L + id));
+    }
+
+    private static List<Integer> ids(List<MessageStore.StoredMessage> messages) {
+        List<Integer> ids = new ArrayList<>();
+        for (MessageStore.StoredMessage message : messages) {
+            ids.add(message.getMessageId());
+        }
+        return ids;
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        paths.sort(null);
+        return paths;
+    }
+
+    private Path onlySegment() throws IOException {
+        List<Path> paths = segments();
+        assertEquals(1, paths.size());
+        return paths.get(0);
+    }
+
+    private static void corrupt(Path segment, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, offset);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            channel.write(b, offset);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package http.httpdiff;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpRequestParserTest {
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    private final HttpRequestParser parser = new HttpRequestParser(MAX_HEADER_SIZE, MAX_BODY_SIZE);
+
+    @Test
+    void parsesRequestLineAndHeaders() {
+        HttpRequest request = parser.parse(bytes("GET /api/messages?chat_id=17 HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "X-Custom:   padded value  \r\n\r\n"));
+
+        assertNotNull(request);
+        assertEquals(HttpMethod.GET, request.getMethod());
+        assertEquals("/api/messages?chat_id=17", request.getUrl());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("localhost", request.getHeader("host"));
+        assertEquals("padded value", request.getHeader("X-Custom"));
+        assertFalse(parser.hasPartialRequest());
+    }
+
+    @Test
+    void readsBodyByContentLength() {
+        String body = "{\"text\":\"Привет\"}";
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        HttpRequest request = parser.parse(bytes("POST /api/send-message HTTP/1.1\r\n"
+                + "Content-Length: " + bodyBytes.length + "\r\n\r\n" + body));
+
+        assertNotNull(request);
+        assertArrayEquals(bodyBytes, request.getBodyBytes());
+    }
+
+    @Test
+    void resumesRequestSplitAcrossReads() {
+        byte[] body = new byte[100 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        byte[] head = ("POST /upload HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] message = new byte[head.length + body.length];
+        System.arraycopy(head, 0, message, 0, head.length);
+        System.arraycopy(body, 0, message, head.length, body.length);
+
+        HttpRequest request = null;
+        for (int offset = 0; offset < message.length; offset += 7) {
+            assertNull(request, "request completed before all bytes arrived");
+            request = parser.parse(ByteBuffer.wrap(message, offset, Math.min(7, message.length - offset)));
+        }
+
+        assertNotNull(request);
+        assertArrayEquals(body, request.getBodyBytes());
+    }
+
+    @Test
+    void returnsPipelinedRequestsOneByOne() {
+        ByteBuffer buffer = bytes("GET /a HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "POST /b HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc"
+                + "GET /c HTTP/1.1\r\n");
+
+        assertEquals("/a", parser.parse(buffer).getUrl());
+        HttpRequest second = parser.parse(buffer);
+        assertEquals("/b", second.getUrl());
+        assertEquals("abc", second.getBody());
+        assertNull(parser.parse(buffer));
+        assertTrue(parser.hasPartialRequest());
+
+        HttpRequest third = parser.parse(bytes("\r\n"));
+        assertEquals("/c", third.getUrl());
+    }
+
+    @Test
+    void decodesChunkedBody() {
+        HttpRequest request = parser.parse(bytes("POST /chunked HTTP/1.1\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nHello\r\n"
+                + "7;ext=1\r\n, world\r\n"
+                + "0\r\n\r\n"));
+
+        assertNotNull(request);
+        assertEquals("Hello, world", request.getBody());
+    }
+
+    @Test
+    void rejectsDuplicateContentLength() {
+        assertStatus(400, "POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello");
+    }
+
+    @Test
+    void rejectsContentLengthWithTransferEncoding() {
+        assertStatus(400, "POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n");
+    }
+
+    @Test
+    void rejectsListContentLength() {
+        assertStatus(400, "POST / HTTP/1.1\r\nContent-Length: 5, 6\r\n\r\n");
+    }
+
+    @Test
+    void rejectsOversizedBody() {
+        assertStatus(413, "POST / HTTP/1.1\r\nContent-Length: " + (MAX_BODY_SIZE + 1) + "\r\n\r\n");
+    }
+
+    @Test
+    void rejectsOversizedHeaders() {
+        assertStatus(431, "GET / HTTP/1.1\r\nX-Long: " + "a".repeat(MAX_HEADER_SIZE) + "\r\n\r\n");
+    }
+
+    @Test
+    void rejectsUnknownMethod() {
+        assertStatus(501, "BREW /pot HTTP/1.1\r\n\r\n");
+    }
+
+    private void assertStatus(int statusCode, String message) {
+        HttpRequestParser.HttpParseException e = assertThrows(HttpRequestParser.HttpParseException.class,
+                () -> parser.parse(bytes(message)));
+        assertEquals(statusCode, e.getStatusCode());
+    }
+
+    private static ByteBuffer bytes(String message) {
+        return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,85 @@
+package websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PerMessageDeflateTest {
+    private static final int MAX_SIZE = 1024 * 1024;
+
+    @Test
+    void negotiatesFirstAcceptableOffer() {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate(
+                "permessage-deflate; server_max_window_bits=10, permessage-deflate; client_no_context_takeover",
+                false, 256);
+
+        assertNotNull(deflate);
+        assertEquals("permessage-deflate; client_no_context_takeover", deflate.getResponseHeader());
+        assertFalse(deflate.isServerNoContextTakeover());
+    }
+
+    @Test
+    void forcesServerNoContextTakeover() {
+        PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate; client_max_window_bits", true, 256);
+
+        assertNotNull(deflate);
+        assertTrue(deflate.isServerNoContextTakeover());
+        assertEquals("permessage-deflate; server_no_context_takeover", deflate.getResponseHeader());
+    }
+
+    @Test
+    void rejectsUnknownExtensionsAndParameters() {
+        assertNull(PerMessageDeflate.negotiate(null, false, 256));
+        assertNull(PerMessageDeflate.negotiate("x-webkit-deflate-frame", false, 256));
+        assertNull(PerMessageDeflate.negotiate("permessage-deflate; unknown_param", false, 256));
+    }
+
+    @Test
+    void roundTripsWithContextTakeover() throws Exception {
+        PerMessageDeflate server = PerMessageDeflate.negotiate("permessage-deflate", false, 0);
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate", false, 0);
+        byte[] first = "{\"type\":\"new_message\",\"text\":\"Привет всем\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "{\"type\":\"new_message\",\"text\":\"Привет ещё раз\"}".getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressedFirst = server.compress(first);
+        byte[] compressedSecond = server.compress(second);
+
+        // Второе сообщение ссылается на словарь первого - распаковывается только по порядку
+        assertArrayEquals(first, client.decompress(compressedFirst, 0, compressedFirst.length, MAX_SIZE));
+        assertArrayEquals(second, client.decompress(compressedSecond, 0, compressedSecond.length, MAX_SIZE));
+        server.close();
+        client.close();
+    }
+
+    @Test
+    void roundTripsWithoutContext() throws Exception {
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate; client_no_context_takeover", false, 0);
+        byte[] payload = "a".repeat(10000).getBytes(StandardCharsets.US_ASCII);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] compressed = PerMessageDeflate.compressWithoutContext(payload);
+            assertTrue(compressed.length < payload.length);
+            assertArrayEquals(payload, client.decompress(compressed, 0, compressed.length, MAX_SIZE));
+        }
+        client.close();
+    }
+
+    @Test
+    void rejectsDecompressionBomb() {
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate", false, 0);
+        byte[] compressed = PerMessageDeflate.compressWithoutContext(new byte[100 * 1024]);
+
+        WebSocketFrameDecoder.ProtocolException e = assertThrows(WebSocketFrameDecoder.ProtocolException.class,
+                () -> client.decompress(compressed, 0, compressed.length, 64 * 1024));
+        assertEquals(WebSocketFrameDecoder.CLOSE_TOO_BIG, e.getStatusCode());
+        client.close();
+    }
+}
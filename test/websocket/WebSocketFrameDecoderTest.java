@@ -0,0 +1,197 @@
+package websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WebSocketFrameDecoderTest {
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    private static final int MASK = 0x1A2B3C4D;
+
+    private final WebSocketFrameDecoder decoder = new WebSocketFrameDecoder(MAX_MESSAGE_SIZE, null);
+    private final Recorder recorder = new Recorder();
+
+    @Test
+    void decodesSeveralFramesFromOneRead() throws Exception {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        frame(input, true, WebSocketFrameDecoder.OPCODE_TEXT, text("первое"));
+        frame(input, true, WebSocketFrameDecoder.OPCODE_BINARY, new byte[] {1, 2, 3});
+        frame(input, true, WebSocketFrameDecoder.OPCODE_TEXT, text("третье"));
+
+        decoder.decode(ByteBuffer.wrap(input.toByteArray()), recorder);
+
+        assertEquals(List.of("text:первое", "binary:3", "text:третье"), recorder.events);
+        assertArrayEquals(new byte[] {1, 2, 3}, recorder.binary);
+    }
+
+    @Test
+    void resumesFrameSplitAcrossReads() throws Exception {
+        String message = "x".repeat(70000 / 2);
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        frame(input, true, WebSocketFrameDecoder.OPCODE_TEXT, text(message));
+        byte[] bytes = input.toByteArray();
+
+        // По одному байту: заголовок с 16-битной длиной тоже приходит частями
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.decode(ByteBuffer.wrap(bytes, i, 1), recorder);
+        }
+
+        assertEquals(List.of("text:" + message), recorder.events);
+    }
+
+    @Test
+    void assemblesFragmentedMessageAroundControlFrame() throws Exception {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        frame(input, false, WebSocketFrameDecoder.OPCODE_TEXT, text("Hel"));
+        frame(input, true, WebSocketFrameDecoder.OPCODE_PING, text("p"));
+        frame(input, false, WebSocketFrameDecoder.OPCODE_CONTINUATION, text("lo, "));
+        frame(input, true, WebSocketFrameDecoder.OPCODE_CONTINUATION, text("world"));
+
+        decoder.decode(ByteBuffer.wrap(input.toByteArray()), recorder);
+
+        assertEquals(List.of("ping:1", "text:Hello, world"), recorder.events);
+    }
+
+    @Test
+    void unmasksUnalignedTail() {
+        for (int length = 0; length < 20; length++) {
+            byte[] data = new byte[length + 3];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i * 7);
+            }
+            byte[] expected = data.clone();
+            for (int i = 0; i < length; i++) {
+                expected[3 + i] ^= (byte) (MASK >>> (24 - 8 * (i % 4)));
+            }
+
+            WebSocketFrameDecoder.unmask(data, 3, length, MASK);
+
+            assertArrayEquals(expected, data, "length " + length);
+        }
+    }
+
+    @Test
+    void reportsCloseStatus() throws Exception {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        frame(input, true, WebSocketFrameDecoder.OPCODE_CLOSE, new byte[] {0x03, (byte) 0xE9});
+        frame(input, true, WebSocketFrameDecoder.OPCODE_TEXT, text("after close"));
+
+        decoder.decode(ByteBuffer.wrap(input.toByteArray()), recorder);
+
+        assertEquals(List.of("close:1001"), recorder.events);
+        assertTrue(decoder.isClosed());
+    }
+
+    @Test
+    void rejectsCloseWithOneBytePayload() {
+        assertProtocolError(WebSocketFrameDecoder.CLOSE_PROTOCOL_ERROR,
+                true, WebSocketFrameDecoder.OPCODE_CLOSE, new byte[] {0x03});
+    }
+
+    @Test
+    void rejectsUnmaskedFrame() {
+        byte[] frame = {(byte) 0x81, 0x01, 'a'};
+        WebSocketFrameDecoder.ProtocolException e = assertThrows(WebSocketFrameDecoder.ProtocolException.class,
+                () -> decoder.decode(ByteBuffer.wrap(frame), recorder));
+        assertEquals(WebSocketFrameDecoder.CLOSE_PROTOCOL_ERROR, e.getStatusCode());
+    }
+
+    @Test
+    void rejectsFragmentedControlFrame() {
+        assertProtocolError(WebSocketFrameDecoder.CLOSE_PROTOCOL_ERROR,
+                false, WebSocketFrameDecoder.OPCODE_PING, new byte[0]);
+    }
+
+    @Test
+    void rejectsContinuationWithoutMessage() {
+        assertProtocolError(WebSocketFrameDecoder.CLOSE_PROTOCOL_ERROR,
+                true, WebSocketFrameDecoder.OPCODE_CONTINUATION, text("orphan"));
+    }
+
+    @Test
+    void rejectsMessageOverLimit() {
+        assertProtocolError(WebSocketFrameDecoder.CLOSE_TOO_BIG,
+                true, WebSocketFrameDecoder.OPCODE_BINARY, new byte[MAX_MESSAGE_SIZE + 1]);
+    }
+
+    @Test
+    void rejectsInvalidUtf8() {
+        assertProtocolError(WebSocketFrameDecoder.CLOSE_INVALID_DATA,
+                true, WebSocketFrameDecoder.OPCODE_TEXT, new byte[] {(byte) 0xC3, 0x28});
+    }
+
+    private void assertProtocolError(int statusCode, boolean fin, int opcode, byte[] payload) {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        frame(input, fin, opcode, payload);
+        WebSocketFrameDecoder.ProtocolException e = assertThrows(WebSocketFrameDecoder.ProtocolException.class,
+                () -> decoder.decode(ByteBuffer.wrap(input.toByteArray()), recorder));
+        assertEquals(statusCode, e.getStatusCode());
+    }
+
+    private static byte[] text(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Кадр клиента: всегда с маской, длина в самой короткой допустимой форме
+     */
+    private static void frame(ByteArrayOutputStream out, boolean fin, int opcode, byte[] payload) {
+        out.write((fin ? 0x80 : 0) | opcode);
+        if (payload.length < 126) {
+            out.write(0x80 | payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            out.write(0x80 | 126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(0x80 | 127);
+            out.writeBytes(ByteBuffer.allocate(8).putLong(payload.length).array());
+        }
+        out.writeBytes(ByteBuffer.allocate(4).putInt(MASK).array());
+        byte[] masked = payload.clone();
+        for (int i = 0; i < masked.length; i++) {
+            masked[i] ^= (byte) (MASK >>> (24 - 8 * (i % 4)));
+        }
+        out.writeBytes(masked);
+    }
+
+    private static class Recorder implements WebSocketFrameDecoder.Listener {
+        final List<String> events = new ArrayList<>();
+        byte[] binary;
+
+        @Override
+        public void onText(String message) {
+            events.add("text:" + message);
+        }
+
+        @Override
+        public void onBinary(byte[] message) {
+            binary = message;
+            events.add("binary:" + message.length);
+        }
+
+        @Override
+        public void onPing(byte[] payload) {
+            events.add("ping:" + payload.length);
+        }
+
+        @Override
+        public void onPong(byte[] payload) {
+            events.add("pong:" + payload.length);
+        }
+
+        @Override
+        public void onClose(int statusCode) {
+            events.add("close:" + statusCode);
+        }
+    }
+}